@@ -0,0 +1,58 @@
+/**
+ * Cost of creating and serializing drawing events.
+ * CanvasMsg is exported as a remote object when created, CanvasEvent is the by-value copy the server forwards.
+ */
+
+package benchmark;
+
+import canvas.CanvasEvent;
+import canvas.CanvasMsg;
+import canvas.Trace;
+import canvas.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class EventBenchmark {
+
+    private final Point point = new Point(120, 340);
+    private CanvasEvent event;
+
+    @Setup
+    public void setup() {
+        event = new CanvasEvent(Utils.painting, Utils.free, Color.black, point, "", "drawer", Trace.origin(1));
+    }
+
+    @Benchmark
+    public Object createCanvasMsg() throws IOException {
+        CanvasMsg msg = new CanvasMsg(Utils.painting, Utils.free, Color.black, point, "", "drawer", Trace.origin(1));
+        UnicastRemoteObject.unexportObject(msg, true);
+        return msg;
+    }
+
+    @Benchmark
+    public Object createCanvasEvent() {
+        return new CanvasEvent(Utils.painting, Utils.free, Color.black, point, "", "drawer", Trace.origin(1));
+    }
+
+    @Benchmark
+    public byte[] serializeCanvasEvent() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(event);
+        }
+        return bytes.toByteArray();
+    }
+
+}
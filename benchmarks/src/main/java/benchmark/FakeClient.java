@@ -0,0 +1,123 @@
+/**
+ * In-process client without any UI, counting the board updates it receives.
+ */
+
+package benchmark;
+
+import canvas.Chunk;
+import canvas.ICanvasMsg;
+import canvas.Tile;
+import client.IClient;
+
+import javax.swing.*;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FakeClient implements IClient {
+
+    private String username;
+    private boolean hasAccess = true;
+    private final AtomicLong delivered;
+
+    public FakeClient(String username, AtomicLong delivered) {
+        this.username = username;
+        this.delivered = delivered;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String s) {
+        this.username = s;
+    }
+
+    @Override
+    public void setAsManager() {
+    }
+
+    @Override
+    public void syncJoinRequests(List<String> usernames) {
+    }
+
+    @Override
+    public void setSessionToken(String token) {
+    }
+
+    @Override
+    public boolean getAccess() {
+        return hasAccess;
+    }
+
+    @Override
+    public void setAccess(boolean access) {
+        this.hasAccess = access;
+    }
+
+    @Override
+    public void syncClientList(Set<IClient> clientList) {
+    }
+
+    @Override
+    public void syncCanvas(ICanvasMsg draw) {
+        delivered.incrementAndGet();
+    }
+
+    @Override
+    public void cleanCanvas(long seq) {
+        delivered.incrementAndGet();
+    }
+
+    @Override
+    public void syncPreview(ICanvasMsg preview) {
+        delivered.incrementAndGet();
+    }
+
+    @Override
+    public void cleanLayer(String username, long seq, long prev) {
+        delivered.incrementAndGet();
+    }
+
+    @Override
+    public void skipTo(long seq) {
+    }
+
+    @Override
+    public void overrideCanvas(Chunk canvas, long seq) {
+        delivered.incrementAndGet();
+    }
+
+    @Override
+    public void previewCanvas(Tile preview, long seq) {
+        delivered.incrementAndGet();
+    }
+
+    @Override
+    public void forceQuit() {
+    }
+
+    @Override
+    public void syncChat(String msg) {
+    }
+
+    @Override
+    public DefaultListModel<String> getChatHistory() {
+        return new DefaultListModel<>();
+    }
+
+    @Override
+    public void syncChatHistory(DefaultListModel<String> chatHistory) {
+    }
+
+    @Override
+    public void configUI() {
+    }
+
+    @Override
+    public void renderUI() {
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Cost of broadcasting a drawing through BoardMgr to N in-process clients.
+ * broadcastMsg measures the caller's time until the update is queued,
+ * broadcastAndDeliver waits until every client has received it.
+ * Clients can be put behind emulated network links with -p link=..., in the format of -Dloadtest.link.
+ */
+
+package benchmark;
+
+import canvas.CanvasEvent;
+import canvas.Trace;
+import canvas.Utils;
+import client.IClient;
+import loadtest.Link;
+import org.openjdk.jmh.annotations.*;
+import server.BoardMgr;
+
+import java.awt.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dwhiteboard.admission.autoApprove=all",
+        "-Dwhiteboard.trace.sampleRate=0", "-Dwhiteboard.lag.maxMillis=60000"})
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int clients;
+
+    // Links the clients are behind in turn, none by default
+    @Param({""})
+    public String link;
+
+    private BoardMgr board;
+    private final AtomicLong delivered = new AtomicLong();
+    private long sent = 0;
+    private int x = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        board = new BoardMgr();
+        List<Link> links = Link.parse(link);
+        for (int i = 0; i < clients; i++) {
+            IClient client = new FakeClient("client" + i, delivered);
+            Link l = Link.forClient(links, i);
+            board.login(l == null ? client : l.incoming(IClient.class, client));
+        }
+        // Joiners are admitted on the admission thread
+        while (board.getClients().size() < clients) {
+            Thread.sleep(10);
+        }
+    }
+
+    private CanvasEvent nextEvent() {
+        x = (x + 1) % Utils.canvasWidth;
+        return new CanvasEvent(Utils.painting, Utils.free, Color.black, new Point(x, x), "", "drawer", Trace.origin(x));
+    }
+
+    @Benchmark
+    public void broadcastMsg() throws Exception {
+        board.broadcastMsg(nextEvent());
+        sent += clients;
+        // Keep the queues from hitting the catch-up threshold
+        if (sent - delivered.get() > 1000L * clients) {
+            awaitDelivery();
+        }
+    }
+
+    @Benchmark
+    public void broadcastAndDeliver() throws Exception {
+        board.broadcastMsg(nextEvent());
+        sent += clients;
+        awaitDelivery();
+    }
+
+    private void awaitDelivery() {
+        while (delivered.get() < sent) {
+            Thread.onSpinWait();
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Cost of rendering remote free-hand and eraser segments through Graphics2D against the direct raster fast path.
+ * Events are applied to a board engine, as in Client.syncCanvas.
+ * Eraser segments have square caps the fast path cannot draw, so they go through Graphics2D in both modes.
+ */
+
+package benchmark;
+
+import canvas.BoardEngine;
+import canvas.CanvasEvent;
+import canvas.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class RasterBenchmark {
+
+    @Param({"graphics", "raster"})
+    public String renderer;
+
+    private BoardEngine engine;
+    private final Random random = new Random(42);
+    private Point start = new Point(100, 100);
+
+    @Setup
+    public void setup() {
+        engine = new BoardEngine(false, renderer.equals("raster"));
+    }
+
+    // Next point of a free-hand stroke, a few pixels from the last one
+    private Point nextPoint() {
+        int x = Math.floorMod(start.x + random.nextInt(9) - 4, Utils.canvasWidth);
+        int y = Math.floorMod(start.y + random.nextInt(9) - 4, Utils.canvasHeight);
+        return new Point(x, y);
+    }
+
+    @Benchmark
+    public void segment() throws Exception {
+        start = nextPoint();
+        engine.apply(new CanvasEvent(Utils.painting, Utils.free, Color.blue, start, "", "remote"));
+    }
+
+    @Benchmark
+    public void eraser() throws Exception {
+        start = nextPoint();
+        engine.apply(new CanvasEvent(Utils.painting, Utils.eraser, Color.white, start, "", "remote"));
+    }
+
+    // Eight drawers taking turns, each continuing a stroke of their own
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void interleaved() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            start = nextPoint();
+            engine.apply(new CanvasEvent(Utils.painting, Utils.free, Color.red, start, "", "remote" + i));
+        }
+    }
+
+}
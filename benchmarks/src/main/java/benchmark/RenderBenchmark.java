@@ -0,0 +1,121 @@
+/**
+ * Cost of applying remote drawings in Client.syncCanvas, copying the canvas frame and encoding it as PNG.
+ * The client runs headless, drawing into its board engine without a window.
+ */
+
+package benchmark;
+
+import canvas.BoardEngine;
+import canvas.CanvasEvent;
+import canvas.Canvas;
+import canvas.Utils;
+import client.Client;
+import metrics.ClientMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.io.IOException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class RenderBenchmark {
+
+    // Blank board or one covered in scribbles, which is much harder to compress
+    @Param({"blank", "scribbled"})
+    public String content;
+
+    private Client client;
+    private BoardEngine engine;
+    private Canvas canvas;
+    private final Random random = new Random(42);
+    private Point start = new Point(100, 100);
+
+    @Setup
+    public void setup() throws Exception {
+        client = new Client(null, "bench");
+        engine = new BoardEngine();
+        canvas = new Canvas(null, engine, "bench", true, new ClientMetrics());
+        if (content.equals("scribbled")) {
+            Graphics2D g2 = engine.newGraphics();
+            for (int i = 0; i < 20000; i++) {
+                g2.setPaint(new Color(random.nextInt(0xffffff)));
+                g2.draw(canvas.drawLine(randomPoint(), randomPoint()));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        UnicastRemoteObject.unexportObject(client, true);
+    }
+
+    private Point randomPoint() {
+        return new Point(random.nextInt(Utils.canvasWidth), random.nextInt(Utils.canvasHeight));
+    }
+
+    // Next point of a free-hand stroke, a few pixels from the last one
+    private Point nextPoint() {
+        int x = Math.floorMod(start.x + random.nextInt(9) - 4, Utils.canvasWidth);
+        int y = Math.floorMod(start.y + random.nextInt(9) - 4, Utils.canvasHeight);
+        return new Point(x, y);
+    }
+
+    private static CanvasEvent event(String state, String type, Color color, Point point, String text) {
+        return new CanvasEvent(state, type, color, point, text, "remote");
+    }
+
+    @Benchmark
+    public void renderSegment() throws Exception {
+        start = nextPoint();
+        client.syncCanvas(event(Utils.painting, Utils.free, Color.blue, start, ""));
+    }
+
+    @Benchmark
+    public void renderEraser() throws Exception {
+        start = nextPoint();
+        client.syncCanvas(event(Utils.painting, Utils.eraser, Color.white, start, ""));
+    }
+
+    // A shape arrives as paintStart at the press point and paintEnd at the release point
+    @Benchmark
+    public void renderCircle() throws Exception {
+        client.syncCanvas(event(Utils.paintStart, Utils.circle, Color.red, randomPoint(), ""));
+        client.syncCanvas(event(Utils.paintEnd, Utils.circle, Color.red, randomPoint(), ""));
+    }
+
+    @Benchmark
+    public void renderRectangle() throws Exception {
+        client.syncCanvas(event(Utils.paintStart, Utils.rectangle, Color.green, randomPoint(), ""));
+        client.syncCanvas(event(Utils.paintEnd, Utils.rectangle, Color.green, randomPoint(), ""));
+    }
+
+    @Benchmark
+    public void renderText() throws Exception {
+        Point p = randomPoint();
+        client.syncCanvas(event(Utils.paintStart, Utils.text, Color.black, p, ""));
+        client.syncCanvas(event(Utils.paintEnd, Utils.text, Color.black, p, "Hello board"));
+    }
+
+    @Benchmark
+    public Object saveCanvas() {
+        return canvas.getCanvasImage();
+    }
+
+    @Benchmark
+    public void renderFrame() {
+        canvas.renderFrame(canvas.getCanvasImage());
+    }
+
+    @Benchmark
+    public byte[] encodePng() throws IOException {
+        return engine.encodePng();
+    }
+
+}
@@ -115,7 +115,7 @@ public class WhiteBoard {
                         System.out.println("The name has been taken!\nPlease enter a new one.");
                         System.exit(0);
                     }
-                    IClient client = new Client(server, username);
+                    Client client = new Client(server, username);
                     try {
                         server.login(client);
                     } catch(RemoteException e) {
@@ -123,8 +123,8 @@ public class WhiteBoard {
                         System.exit(0);
                     }
 
-                    // Judge client's access
-                    if (client.getAccess()) {
+                    // Wait for the manager to decide, then judge client's access
+                    if (client.awaitAccess()) {
                         // Render UI
                         client.renderUI();
                     } else {
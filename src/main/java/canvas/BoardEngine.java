@@ -0,0 +1,529 @@
+/**
+ * Class for the board raster and the application of drawing events, without any Swing dependency.
+ * Used by the Swing client, the server's copy of the board, load-test bots and benchmarks.
+ * Views subscribe with a Listener and repaint the area which has changed.
+ * In layer mode every user draws on a layer of their own, and the frame is the composite of the layers.
+ */
+
+package canvas;
+
+import javax.imageio.ImageIO;
+import metrics.Rate;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class BoardEngine {
+
+    // Notified after the board has changed
+    public interface Listener {
+        // Area which has changed, null for the whole board
+        void boardChanged(Rectangle area);
+    }
+
+    // Per-user layers, enabled with -Dwhiteboard.layers=true on the server and every client
+    public static final boolean layered = Boolean.getBoolean("whiteboard.layers");
+    // Remote stroke segments written straight into the pixels, enabled with -Dwhiteboard.render.fast=true
+    public static final boolean fastRaster = Boolean.getBoolean("whiteboard.render.fast");
+    // Adaptive quality: while remote events arrive faster than adaptiveRate per second or more than adaptiveDepth
+    // callers wait for the drawer's board, the drawer marks the segments it sends rough and every board draws them
+    // without antialiasing, so all boards keep the same pixels, enabled with -Dwhiteboard.render.adaptive=true
+    public static final boolean adaptive = Boolean.getBoolean("whiteboard.render.adaptive");
+    public static final int adaptiveRate = Integer.getInteger("whiteboard.render.adaptiveRate", 500);
+    public static final int adaptiveDepth = Integer.getInteger("whiteboard.render.adaptiveDepth", 4);
+
+    private final BufferedImage frame;
+    // Pixels of the frame when they are kept outside the heap, null otherwise
+    private final DirectRaster direct;
+    // Graphics used for drawing events, local drawing uses its own from newGraphics()
+    private final Graphics2D g2;
+    // Last point of every remote stroke in progress
+    private final Map<String, Point> points = new HashMap<>();
+    // Users whose stroke has no segment yet, the fast path draws the start cap only for them
+    private final Set<String> started = new HashSet<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Layers composited into the frame, null when everyone draws on the frame directly
+    private final Layers layers;
+    // Whether the base holds a board copied from elsewhere, such as a snapshot or tiles, with every layer flattened into it
+    private boolean flattened = false;
+    // Rasterizer for free-hand, line and eraser segments, null when they go through Graphics2D
+    private final FastRaster fast;
+    // Remote events applied, and callers waiting for the board, which adaptive quality watches
+    private final Rate incoming = new Rate();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private volatile boolean degraded = false;
+    // Latest preview of the shape every remote user is dragging, drawn over views but never on the board
+    private final Map<String, Preview> previews = new HashMap<>();
+
+    private static class Preview {
+        private final Shape shape;
+        private final Color color;
+        private final String text;
+        private final Point point;
+        private final Rectangle area;
+
+        Preview(Shape shape, Color color, String text, Point point, Rectangle area) {
+            this.shape = shape;
+            this.color = color;
+            this.text = text;
+            this.point = point;
+            this.area = area;
+        }
+    }
+
+    public BoardEngine() {
+        this(layered, fastRaster);
+    }
+
+    public BoardEngine(boolean layered) {
+        this(layered, fastRaster);
+    }
+
+    public BoardEngine(boolean layered, boolean fastRaster) {
+        this(layered, fastRaster, false);
+    }
+
+    // Board whose pixels are kept outside the heap when offHeap is set, segments then go through Graphics2D
+    public BoardEngine(boolean layered, boolean fastRaster, boolean offHeap) {
+        frame = offHeap ? DirectRaster.image(Utils.canvasWidth, Utils.canvasHeight)
+                : new BufferedImage(Utils.canvasWidth, Utils.canvasHeight, BufferedImage.TYPE_INT_RGB);
+        direct = DirectRaster.of(frame);
+        g2 = newGraphics();
+        if (direct != null) {
+            direct.fill(Color.white);
+        } else {
+            g2.setPaint(Color.white);
+            g2.fillRect(0, 0, Utils.canvasWidth, Utils.canvasHeight);
+        }
+        layers = layered ? new Layers(frame) : null;
+        // Layers draw into tiles of their own, so segments only take the fast path on a single frame
+        fast = fastRaster && !layered && FastRaster.supports(frame) ? new FastRaster(frame) : null;
+    }
+
+    // Graphics drawing on the board with the default settings
+    public Graphics2D newGraphics() {
+        Graphics2D g = frame.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(Color.black);
+        g.setStroke(Utils.defaultStroke);
+        return g;
+    }
+
+    public BufferedImage getFrame() {
+        return frame;
+    }
+
+    public boolean isLayered() {
+        return layers != null;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Tell the views that an area has changed, e.g. after local drawing
+    public void changed(Rectangle area) {
+        for (Listener l : listeners) {
+            l.boardChanged(area);
+        }
+    }
+
+    // Apply a drawing event from another user
+    public void apply(ICanvasMsg draw) throws RemoteException {
+        Rectangle area = null;
+        // Area of a preview replaced by the committed shape
+        Rectangle replaced = null;
+        if (adaptive) {
+            incoming.mark();
+            waiting.incrementAndGet();
+        }
+        synchronized (this) {
+            if (adaptive) {
+                waiting.decrementAndGet();
+            }
+            String user = draw.getUsername();
+            Point point = draw.getPoint();
+            if (draw.getPaintState().equals(Utils.paintStart)) {
+                points.put(user, point);
+                started.add(user);
+                return;
+            }
+            boolean first = started.remove(user);
+            // Draw from the start point
+            Point start = points.getOrDefault(user, point);
+            String type = draw.getPaintType();
+            BasicStroke stroke = type.equals(Utils.eraser) ? Utils.thickStroke : Utils.defaultStroke;
+            Color color = draw.getColor();
+
+            Shape shape = null;
+            boolean antialias = true;
+            switch (draw.getPaintState()) {
+                // Mouse motion when free-hand drawing or using eraser
+                case Utils.painting:
+                    // Drawn as the drawer decided, whatever the load on this board
+                    antialias = !draw.isRough();
+                    // Round caps only match Graphics2D at the thin pen, the eraser's square corners are left to it
+                    if (fast != null && antialias && stroke == Utils.defaultStroke) {
+                        area = fast.line(start, point, stroke.getLineWidth(), color, first);
+                    } else {
+                        shape = Shapes.line(start, point);
+                    }
+                    points.put(user, point);
+                    break;
+                // Mouse release
+                case Utils.paintEnd:
+                    switch (type) {
+                        case Utils.free:
+                        case Utils.line:
+                        case Utils.eraser:
+                            if (fast != null && stroke == Utils.defaultStroke) {
+                                area = fast.line(start, point, stroke.getLineWidth(), color, first);
+                            } else {
+                                shape = Shapes.line(start, point);
+                            }
+                            break;
+                        case Utils.circle:
+                            shape = Shapes.circle(start, point);
+                            break;
+                        case Utils.triangle:
+                            shape = Shapes.triangle(start, point);
+                            break;
+                        case Utils.rectangle:
+                            shape = Shapes.rectangle(start, point);
+                            break;
+                        case Utils.text:
+                            area = drawText(user, color, draw.getText(), point);
+                            break;
+                    }
+                    points.remove(user);
+                    Preview gone = previews.remove(user);
+                    if (gone != null) {
+                        replaced = gone.area;
+                    }
+                    break;
+                default:
+                    return;
+            }
+            if (shape != null) {
+                area = bounds(shape, stroke);
+                Object quality = antialias ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF;
+                if (layers == null) {
+                    Shape drawn = shape;
+                    paint(area, g -> {
+                        g.setPaint(color);
+                        g.setStroke(stroke);
+                        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, quality);
+                        g.draw(drawn);
+                        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                    });
+                } else {
+                    Shape drawn = shape;
+                    boolean erase = type.equals(Utils.eraser);
+                    layers.paint(user, area, g -> {
+                        // The eraser only takes out the user's own drawing
+                        if (erase) {
+                            g.setComposite(AlphaComposite.Clear);
+                        }
+                        g.setPaint(color);
+                        g.setStroke(stroke);
+                        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, quality);
+                        g.draw(drawn);
+                    });
+                    area = layers.compose();
+                }
+            }
+        }
+        if (replaced != null && area != null) {
+            area = area.union(replaced);
+        }
+        changed(area);
+    }
+
+    // Show the shape a remote user is dragging in place of their last preview, ignored once the pen is up
+    public void preview(ICanvasMsg draw) throws RemoteException {
+        Rectangle area;
+        synchronized (this) {
+            String user = draw.getUsername();
+            Point start = points.get(user);
+            if (start == null) {
+                return;
+            }
+            Point point = draw.getPoint();
+            Shape shape = null;
+            Rectangle bounds;
+            switch (draw.getPaintType()) {
+                case Utils.line:
+                    shape = Shapes.line(start, point);
+                    break;
+                case Utils.circle:
+                    shape = Shapes.circle(start, point);
+                    break;
+                case Utils.triangle:
+                    shape = Shapes.triangle(start, point);
+                    break;
+                case Utils.rectangle:
+                    shape = Shapes.rectangle(start, point);
+                    break;
+                case Utils.text:
+                    break;
+                default:
+                    return;
+            }
+            if (shape != null) {
+                bounds = bounds(shape, Utils.defaultStroke);
+            } else {
+                g2.setFont(Utils.defaultFont);
+                bounds = g2.getFontMetrics().getStringBounds(draw.getText(), g2).getBounds();
+                bounds.translate(point.x, point.y);
+                bounds.grow(2, 2);
+            }
+            Preview last = previews.put(user, new Preview(shape, draw.getColor(), draw.getText(), point, bounds));
+            area = last == null ? bounds : bounds.union(last.area);
+        }
+        changed(area);
+    }
+
+    // Draw the shapes other users are dragging over a view of the board
+    public void paintPreviews(Graphics g) {
+        Graphics2D g2d = (Graphics2D) g.create();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setStroke(Utils.defaultStroke);
+        g2d.setFont(Utils.defaultFont);
+        synchronized (this) {
+            for (Preview p : previews.values()) {
+                g2d.setPaint(p.color);
+                if (p.shape != null) {
+                    g2d.draw(p.shape);
+                } else {
+                    g2d.drawString(p.text, p.point.x, p.point.y);
+                }
+            }
+        }
+        g2d.dispose();
+    }
+
+    // Whether remote drawing is too busy for full quality, with hysteresis so quality settles back once it calms down.
+    // A drawer asks this for every segment it sends, and marks the segment rough while it is
+    public boolean busy() {
+        if (!adaptive) {
+            return false;
+        }
+        double rate = incoming.perSecond();
+        int depth = waiting.get();
+        if (degraded) {
+            degraded = rate > adaptiveRate / 2.0 || depth > adaptiveDepth / 2;
+        } else {
+            degraded = rate > adaptiveRate || depth > adaptiveDepth;
+        }
+        return degraded;
+    }
+
+    // Whether strokes in progress are being drawn without antialiasing
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    // Draw a text, returns the area it covers
+    private Rectangle drawText(String user, Color color, String text, Point point) {
+        g2.setFont(Utils.defaultFont);
+        if (layers == null && direct == null) {
+            g2.setPaint(color);
+            g2.drawString(text, point.x, point.y);
+            return null;
+        }
+        Rectangle area = g2.getFontMetrics().getStringBounds(text, g2).getBounds();
+        area.translate(point.x, point.y);
+        area.grow(2, 2);
+        if (layers == null) {
+            paint(area, g -> {
+                g.setPaint(color);
+                g.setFont(Utils.defaultFont);
+                g.drawString(text, point.x, point.y);
+            });
+            return area;
+        }
+        layers.paint(user, area, g -> {
+            g.setPaint(color);
+            g.setFont(Utils.defaultFont);
+            g.drawString(text, point.x, point.y);
+        });
+        return layers.compose();
+    }
+
+    // Area covered by a shape drawn with a stroke
+    private static Rectangle bounds(Shape shape, BasicStroke stroke) {
+        Rectangle r = shape.getBounds();
+        int pad = (int) Math.ceil(stroke.getLineWidth() / 2) + 1;
+        r.grow(pad, pad);
+        // Square caps and mitred corners reach further than half the width, the outline is empty for a flat shape
+        Rectangle outline = stroke.createStrokedShape(shape).getBounds();
+        if (!outline.isEmpty()) {
+            outline.grow(1, 1);
+            r = r.union(outline);
+        }
+        return r;
+    }
+
+    // Start point of a remote stroke in progress, null if the user is not drawing
+    public synchronized Point getPen(String username) {
+        return points.get(username);
+    }
+
+    // Start points of all remote strokes in progress
+    public synchronized Map<String, Point> getPens() {
+        return new HashMap<>(points);
+    }
+
+    // Wipe the board
+    public void clean() {
+        synchronized (this) {
+            previews.clear();
+            if (direct != null && layers == null) {
+                direct.fill(Color.white);
+            } else if (layers == null) {
+                g2.setPaint(Color.white);
+                g2.fillRect(0, 0, Utils.canvasWidth, Utils.canvasHeight);
+            } else {
+                layers.reset(null);
+                layers.compose();
+                flattened = false;
+            }
+        }
+        changed(null);
+    }
+
+    // Draw another canvas over the board, in layer mode it replaces every layer
+    public void override(BufferedImage image) {
+        synchronized (this) {
+            previews.clear();
+            if (layers == null) {
+                draw(image, 0, 0);
+            } else {
+                layers.reset(image);
+                layers.compose();
+                flattened = true;
+            }
+        }
+        changed(null);
+    }
+
+    // Draw a piece of the board at its place, such as a tile of a progressive load
+    public void drawTile(BufferedImage image, int x, int y) {
+        Rectangle area = new Rectangle(x, y, image.getWidth(), image.getHeight());
+        synchronized (this) {
+            if (layers == null) {
+                draw(image, x, y);
+            } else {
+                layers.paintBase(image, x, y);
+                layers.compose();
+                flattened = true;
+            }
+        }
+        changed(area);
+    }
+
+    // Wipe one user's layer, only the area it covered is recomposited
+    public void cleanLayer(String username) {
+        Rectangle area;
+        synchronized (this) {
+            if (layers == null) {
+                return;
+            }
+            layers.clear(username);
+            area = layers.compose();
+        }
+        if (area != null) {
+            changed(area);
+        }
+    }
+
+    // Whether strokes of the layers may have been flattened into the base, where clearing or hiding a layer does not reach them
+    public synchronized boolean isFlattened() {
+        return flattened;
+    }
+
+    // Show or hide one user's layer in this view of the board
+    public void setLayerVisible(String username, boolean visible) {
+        Rectangle area;
+        synchronized (this) {
+            if (layers == null) {
+                return;
+            }
+            layers.setVisible(username, visible);
+            area = layers.compose();
+        }
+        if (area != null) {
+            changed(area);
+        }
+    }
+
+    public synchronized boolean isLayerVisible(String username) {
+        return layers == null || layers.isVisible(username);
+    }
+
+    // Users who have drawn on a layer, bottom first
+    public synchronized List<String> getLayers() {
+        return layers == null ? Collections.emptyList() : layers.getNames();
+    }
+
+    // Draw on the frame within an area, through a heap copy of the area when the pixels are outside the heap
+    private void paint(Rectangle area, Consumer<Graphics2D> painter) {
+        if (direct == null) {
+            painter.accept(g2);
+        } else {
+            direct.paint(area, painter);
+        }
+    }
+
+    // Draw an image on the frame
+    private void draw(BufferedImage image, int x, int y) {
+        if (direct == null) {
+            g2.drawImage(image, x, y, null);
+        } else {
+            direct.draw(image, x, y);
+        }
+    }
+
+    // Copy of the board
+    public synchronized BufferedImage copy() {
+        if (direct != null) {
+            return direct.copy(new Rectangle(0, 0, frame.getWidth(), frame.getHeight()));
+        }
+        return new BufferedImage(frame.getColorModel(), frame.copyData(null), false, null);
+    }
+
+    // Copy of a piece of the board
+    public synchronized BufferedImage copy(Rectangle area) {
+        if (direct != null) {
+            return direct.copy(area);
+        }
+        Rectangle r = area.intersection(new Rectangle(0, 0, frame.getWidth(), frame.getHeight()));
+        BufferedImage res = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_RGB);
+        res.setData(frame.getRaster().createChild(r.x, r.y, r.width, r.height, 0, 0, null));
+        return res;
+    }
+
+    // Board encoded as PNG
+    public byte[] encodePng() throws IOException {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        ImageIO.write(copy(), "png", image);
+        return image.toByteArray();
+    }
+
+}
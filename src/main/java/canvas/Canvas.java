@@ -4,22 +4,16 @@
 
 package canvas;
 
+import metrics.ClientMetrics;
 import server.IBoardMgr;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionAdapter;
-import java.awt.geom.Ellipse2D;
-import java.awt.geom.Line2D;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.WritableRaster;
-import java.io.ByteArrayInputStream;
 import java.rmi.RemoteException;
 
 public class Canvas extends JPanel {
@@ -32,15 +26,41 @@ public class Canvas extends JPanel {
     private Point start, end;
     private String text = "";
     private final IBoardMgr boardMgr;
-    private Graphics2D g2;
-    private BufferedImage frame;
+    // Board shared with remote updates, this panel is a view of it
+    private final BoardEngine engine;
+    // Graphics for local drawing, remote events draw with the engine's own
+    private final Graphics2D g2;
     private BufferedImage savedFrame;
+    private boolean loaded;
+    // A stroke started while drawing was allowed, finished even if a load holds drawing back meanwhile
+    private boolean stroking;
+    private final ClientMetrics metrics;
+    // Sequence id of the drawer's events
+    private long eventSeq = 0;
+    // Shapes being dragged are shown to others through previews
+    private final PreviewSender previews;
 
 
-    public Canvas(IBoardMgr boardMgr, String username, boolean isManager) {
+    public Canvas(IBoardMgr boardMgr, BoardEngine engine, String username, boolean isManager, ClientMetrics metrics) {
         this.boardMgr = boardMgr;
+        this.engine = engine;
+        this.metrics = metrics;
         this.username = username;
         this.isManager = isManager;
+        // The manager starts from a blank board
+        this.loaded = isManager;
+        this.g2 = engine.newGraphics();
+        this.g2.setPaint(this.color);
+        this.previews = new PreviewSender(boardMgr);
+
+        // Repaint whatever the engine has changed
+        engine.addListener(area -> {
+            if (area == null) {
+                repaint();
+            } else {
+                repaint(area);
+            }
+        });
 
         // Mouse pressed => start position
         addMouseListener(startListener);
@@ -57,32 +77,58 @@ public class Canvas extends JPanel {
     @Override
     public void paintComponent(Graphics g) {
         super.paintComponent(g);
-        if (frame == null) {
-            // Render a blank for the first joined client (manager)
-            if (isManager) {
-                frame = new BufferedImage(Utils.canvasWidth, Utils.canvasHeight, BufferedImage.TYPE_INT_RGB);
-                g2 = (Graphics2D) frame.getGraphics();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2.setPaint(this.color);
-                g2.setStroke(Utils.defaultStroke);
-                cleanCanvas();
-            } else {
-                // Render the current canvas to the newly joined client
-                try {
-                    byte[] image = boardMgr.sendCurrentCanvas();
-                    frame = ImageIO.read(new ByteArrayInputStream(image));
-                    g2 = (Graphics2D) frame.getGraphics();
-                    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                    g2.setPaint(this.color);
-                    g2.setStroke(Utils.defaultStroke);
-                } catch (Exception e) {
-                    System.out.println("Render error");
-                }
+        // A progressive load is started by the client instead
+        if (!loaded && !Tile.progressive) {
+            loaded = true;
+            // Render the current canvas to the newly joined client
+            try {
+                engine.override(ChunkedInput.readImage(boardMgr::sendCanvasChunk, boardMgr.sendCurrentCanvas()));
+            } catch (Exception e) {
+                System.out.println("Render error");
             }
         }
-        g.drawImage(frame, 0, 0, null);
+        g.drawImage(engine.getFrame(), 0, 0, null);
+        engine.paintPreviews(g);
+        metrics.repaint();
+    }
+
+
+    // Allow drawing once the board has been loaded, or hold it back while a new one loads
+    public void setLoaded(boolean loaded) {
+        this.loaded = loaded;
     }
 
+    // Stamp a new event at input
+    private Trace trace() {
+        return Trace.origin(++eventSeq);
+    }
+
+    // In layer mode the drawer's own events go into their layer as well, after the preview on the frame
+    private void applyLocal(ICanvasMsg msg) {
+        if (msg == null || !engine.isLayered()) {
+            return;
+        }
+        try {
+            engine.apply(msg);
+        } catch (RemoteException e) {
+            System.out.println("Drawing error!");
+        }
+    }
+
+    // Offer the shape being dragged as a preview, free-hand and eraser strokes are sent as they go
+    private void preview() {
+        switch (paintType) {
+            case Utils.line:
+            case Utils.circle:
+            case Utils.triangle:
+            case Utils.rectangle:
+                previews.offer(new CanvasEvent(Utils.preview, paintType, color, end, "", username));
+                break;
+            case Utils.text:
+                previews.offer(new CanvasEvent(Utils.preview, paintType, color, end, "Text", username));
+                break;
+        }
+    }
 
     public Color getColor() {
         return color;
@@ -93,7 +139,7 @@ public class Canvas extends JPanel {
     }
 
     public BufferedImage getFrame() {
-        return frame;
+        return engine.getFrame();
     }
 
     public void renderFrame(BufferedImage f) {
@@ -103,17 +149,12 @@ public class Canvas extends JPanel {
 
     // Clean up the canvas
     public void cleanCanvas() {
-        g2.setPaint(Color.white);
-        g2.fillRect(0, 0, Utils.canvasWidth, Utils.canvasHeight);
-        g2.setPaint(color);
-        repaint();
+        engine.clean();
     }
 
     // Save the canvas as an image
     public void saveCanvas() {
-        ColorModel cm = frame.getColorModel();
-        WritableRaster raster = frame.copyData(null);
-        savedFrame = new BufferedImage(cm, raster, false, null);
+        savedFrame = engine.copy();
     }
 
     // Get image of the current canvas
@@ -126,12 +167,14 @@ public class Canvas extends JPanel {
     private final MouseListener startListener = new MouseAdapter() {
         @Override
         public void mousePressed(MouseEvent event) {
-            if (event.getButton() == MouseEvent.BUTTON1) {
+            if (event.getButton() == MouseEvent.BUTTON1 && loaded) {
+                stroking = true;
                 start = event.getPoint();
                 saveCanvas();
                 try {
-                    ICanvasMsg msg = new CanvasMsg(Utils.paintStart, paintType, color, start, text, username);
+                    ICanvasMsg msg = new CanvasMsg(Utils.paintStart, paintType, color, start, text, username, trace());
                     boardMgr.broadcastMsg(msg);
+                    applyLocal(msg);
                 } catch (RemoteException e) {
                     JOptionPane.showMessageDialog(null, "Unable to draw, server is shut down!");
                 }
@@ -145,7 +188,10 @@ public class Canvas extends JPanel {
             if (SwingUtilities.isLeftMouseButton(event)) {
                 end = event.getPoint();
                 Shape shape = null;
-                if (g2 != null) {
+                ICanvasMsg msg = null;
+                // Segments are drawn rough here and on every other board while this board is busy
+                boolean rough = false;
+                if (stroking) {
                     // Generate different shapes according to types of drawings
                     switch (paintType) {
                         case Utils.line:
@@ -167,8 +213,9 @@ public class Canvas extends JPanel {
                         case Utils.free:
                             shape = drawLine(start, end);
                             start = end;
+                            rough = engine.busy();
                             try {
-                                ICanvasMsg msg = new CanvasMsg(Utils.painting, paintType, color, end, text, username);
+                                msg = new CanvasMsg(Utils.painting, paintType, color, end, text, username, trace(), rough);
                                 boardMgr.broadcastMsg(msg);
                             } catch (RemoteException e) {
                                 JOptionPane.showMessageDialog(null, "Unable to connect to server!");
@@ -185,8 +232,9 @@ public class Canvas extends JPanel {
                             start = end;
                             g2.setPaint(Color.white);
                             g2.setStroke(Utils.thickStroke);
+                            rough = engine.busy();
                             try {
-                                ICanvasMsg msg = new CanvasMsg(Utils.painting, paintType, Color.white, end, text, username);
+                                msg = new CanvasMsg(Utils.painting, paintType, Color.white, end, text, username, trace(), rough);
                                 boardMgr.broadcastMsg(msg);
                             } catch (RemoteException e) {
                                 JOptionPane.showMessageDialog(null, "Unable to connect to server!");
@@ -196,8 +244,14 @@ public class Canvas extends JPanel {
                             throw new IllegalStateException("Unexpected value: " + paintType);
                     }
                     if (!paintType.equals(Utils.text)) {
+                        if (rough) {
+                            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+                        }
                         g2.draw(shape);
+                        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
                     }
+                    applyLocal(msg);
+                    preview();
                     repaint();
                 }
             }
@@ -209,8 +263,11 @@ public class Canvas extends JPanel {
         public void mouseReleased(MouseEvent event) {
             if (event.getButton() == MouseEvent.BUTTON1) {
                 end = event.getPoint();
+                previews.cancel();
                 Shape shape = null;
-                if (g2 != null) {
+                ICanvasMsg msg = null;
+                if (stroking) {
+                    stroking = false;
                     // Generate different shapes according to types of drawings
                     switch (paintType) {
                         case Utils.line:
@@ -238,11 +295,10 @@ public class Canvas extends JPanel {
                     }
                     // Broadcast changes to all clients
                     try {
-                        ICanvasMsg msg;
                         if (paintType.equals(Utils.eraser)) {
-                            msg = new CanvasMsg(Utils.paintEnd, paintType, Color.white, end, text, username);
+                            msg = new CanvasMsg(Utils.paintEnd, paintType, Color.white, end, text, username, trace());
                         } else {
-                            msg = new CanvasMsg(Utils.paintEnd, paintType, color, end, text, username);
+                            msg = new CanvasMsg(Utils.paintEnd, paintType, color, end, text, username, trace());
                         }
                         boardMgr.broadcastMsg(msg);
                     } catch (RemoteException e) {
@@ -256,6 +312,7 @@ public class Canvas extends JPanel {
                             System.out.println("Drawing error!");
                         }
                     }
+                    applyLocal(msg);
                     repaint();
                     // Restore the original color and stroke
                     g2.setPaint(color);
@@ -296,36 +353,19 @@ public class Canvas extends JPanel {
 
 
     public Shape drawLine(Point start, Point end) {
-        return new Line2D.Double(start.x, start.y, end.x, end.y);
+        return Shapes.line(start, end);
     }
 
     public Shape drawCircle(Point start, Point end) {
-        int width = Math.abs(start.x - end.x);
-        int height = Math.abs(start.y - end.y);
-        int x = Math.min(start.x, end.x);
-        int y = Math.min(start.y, end.y);
-        return new Ellipse2D.Double(x, y, Math.max(width, height), Math.max(width, height));
+        return Shapes.circle(start, end);
     }
 
     public Shape drawTriangle(Point start, Point end) {
-        int minX = Math.min(start.x, end.x);
-        int maxX = Math.max(start.x, end.x);
-        int minY = Math.min(start.y, end.y);
-        int maxY = Math.max(start.y, end.y);
-        int[] x = {minX, (minX + maxX)/2, maxX};
-        int[] y = {maxY, minY, maxY};
-        if (end.y < start.y) {
-            y = new int[]{minY, maxY, minY};
-        }
-        return new Polygon(x, y, 3);
+        return Shapes.triangle(start, end);
     }
 
     public Shape drawRectangle(Point start, Point end) {
-        int width = Math.abs(start.x - end.x);
-        int height = Math.abs(start.y - end.y);
-        int x = Math.min(start.x, end.x);
-        int y = Math.min(start.y, end.y);
-        return new Rectangle2D.Double(x, y, width, height);
+        return Shapes.rectangle(start, end);
     }
 
 /*********************************************The Sixteen Named Colors*************************************************/
@@ -0,0 +1,131 @@
+/**
+ * Class for a canvas message copied by value.
+ * The server reads a drawing once and forwards this copy,
+ * so clients do not call back to the drawer for every field.
+ */
+
+package canvas;
+
+import java.awt.*;
+import java.io.Serializable;
+import java.rmi.RemoteException;
+
+public class CanvasEvent implements ICanvasMsg, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final String drawState;
+    private final String paintType;
+    private final Color color;
+    private final Point point;
+    private final String text;
+    private final String username;
+    private final Trace trace;
+    private final boolean rough;
+    private final long seq;
+    private final long prevSeq;
+
+    public CanvasEvent(String state, String msgType, Color color, Point point, String text, String username) {
+        this(state, msgType, color, point, text, username, null);
+    }
+
+    public CanvasEvent(String state, String msgType, Color color, Point point, String text, String username, Trace trace) {
+        this(state, msgType, color, point, text, username, trace, false, 0, 0);
+    }
+
+    private CanvasEvent(String state, String msgType, Color color, Point point, String text, String username, Trace trace,
+                        boolean rough, long seq, long prevSeq) {
+        this.drawState = state;
+        this.paintType = msgType;
+        this.color = color;
+        this.point = point;
+        this.text = text;
+        this.username = username;
+        this.trace = trace;
+        this.rough = rough;
+        this.seq = seq;
+        this.prevSeq = prevSeq;
+    }
+
+    // Copy a (possibly remote) message field by field, remote ones are never sequenced yet
+    public static CanvasEvent copyOf(ICanvasMsg msg) throws RemoteException {
+        if (msg instanceof CanvasEvent) {
+            return (CanvasEvent) msg;
+        }
+        String state = msg.getPaintState();
+        // Only segments can be rough, other events save the call
+        boolean rough = state.equals(Utils.painting) && msg.isRough();
+        return new CanvasEvent(state, msg.getPaintType(), msg.getColor(),
+                msg.getPoint(), msg.getText(), msg.getUsername(), msg.getTrace(), rough, 0, 0);
+    }
+
+    // Same event with another trace
+    public CanvasEvent withTrace(Trace trace) {
+        return new CanvasEvent(drawState, paintType, color, point, text, username, trace, rough, seq, prevSeq);
+    }
+
+    // Same event drawn with or without antialiasing
+    public CanvasEvent withRough(boolean rough) {
+        return new CanvasEvent(drawState, paintType, color, point, text, username, trace, rough, seq, prevSeq);
+    }
+
+    // Same event stamped with its sequence number and the one sent to the recipient before it
+    public CanvasEvent withSeq(long seq, long prevSeq) {
+        return new CanvasEvent(drawState, paintType, color, point, text, username, trace, rough, seq, prevSeq);
+    }
+
+    @Override
+    public String getPaintState() {
+        return this.drawState;
+    }
+
+    @Override
+    public String getPaintType() {
+        return this.paintType;
+    }
+
+    @Override
+    public Color getColor() {
+        return this.color;
+    }
+
+    @Override
+    public Point getPoint() {
+        return this.point;
+    }
+
+    @Override
+    public String getText() {
+        return this.text;
+    }
+
+    @Override
+    public String getUsername() {
+        return this.username;
+    }
+
+    @Override
+    public boolean isRough() {
+        return this.rough;
+    }
+
+    @Override
+    public Trace getTrace() {
+        return this.trace;
+    }
+
+    @Override
+    public long getSeq() {
+        return this.seq;
+    }
+
+    @Override
+    public long getPrevSeq() {
+        return this.prevSeq;
+    }
+
+    // Whether hop timestamps are collected for this event
+    public boolean isSampled() {
+        return this.trace != null && this.trace.isSampled();
+    }
+
+}
@@ -17,14 +17,23 @@ public class CanvasMsg extends UnicastRemoteObject implements ICanvasMsg {
     private final Point point;
     private final String text;
     private final String username;
+    private final Trace trace;
+    private final boolean rough;
 
-    public CanvasMsg(String state, String msgType, Color color, Point point, String text, String username) throws RemoteException {
+    public CanvasMsg(String state, String msgType, Color color, Point point, String text, String username, Trace trace) throws RemoteException {
+        this(state, msgType, color, point, text, username, trace, false);
+    }
+
+    public CanvasMsg(String state, String msgType, Color color, Point point, String text, String username, Trace trace,
+                     boolean rough) throws RemoteException {
         this.drawState = state;
         this.paintType = msgType;
         this.color = color;
         this.point = point;
         this.text = text;
         this.username = username;
+        this.trace = trace;
+        this.rough = rough;
     }
 
     @Override
@@ -57,4 +66,24 @@ public class CanvasMsg extends UnicastRemoteObject implements ICanvasMsg {
         return this.username;
     }
 
+    @Override
+    public boolean isRough() throws RemoteException {
+        return this.rough;
+    }
+
+    @Override
+    public Trace getTrace() throws RemoteException {
+        return this.trace;
+    }
+
+    @Override
+    public long getSeq() throws RemoteException {
+        return 0;
+    }
+
+    @Override
+    public long getPrevSeq() throws RemoteException {
+        return 0;
+    }
+
 }
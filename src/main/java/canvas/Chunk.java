@@ -0,0 +1,76 @@
+/**
+ * Class for a fixed-size piece of a large payload, such as an encoded board, sent by value.
+ * A payload is handed out as its first chunk and the receiver asks for the rest one chunk at a time,
+ * so neither side moves it in one call. Every chunk carries a checksum of its own data and of the whole payload.
+ */
+
+package canvas;
+
+import java.io.Serializable;
+import java.util.zip.CRC32;
+
+public class Chunk implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Bytes in a chunk, configurable with -Dwhiteboard.transfer.chunkSize on the server
+    public static final int size = Math.max(1024, Integer.getInteger("whiteboard.transfer.chunkSize", 64 * 1024));
+
+    // Transfer the chunk belongs to
+    private final long id;
+    // Where the chunk starts in the payload
+    private final long offset;
+    // Length of the whole payload
+    private final long total;
+    // Checksum of the whole payload
+    private final long totalCrc;
+    private final byte[] data;
+    // Checksum of the data, taken by the sender
+    private final long crc;
+
+    public Chunk(long id, long offset, long total, long totalCrc, byte[] data) {
+        this.id = id;
+        this.offset = offset;
+        this.total = total;
+        this.totalCrc = totalCrc;
+        this.data = data;
+        this.crc = crc(data);
+    }
+
+    public static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getTotalCrc() {
+        return totalCrc;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    // Whether the data arrived as it was sent
+    public boolean isIntact() {
+        return data != null && crc(data) == crc;
+    }
+
+    // Whether this is the last chunk of the payload
+    public boolean isLast() {
+        return offset + data.length >= total;
+    }
+
+}
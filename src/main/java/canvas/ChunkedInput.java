@@ -0,0 +1,147 @@
+/**
+ * Class for reading a payload sent in chunks as a stream.
+ * The next chunk is only asked for once the reader has used up the one before it, so a slow reader
+ * holds back the sender and at most one chunk is buffered. A chunk which fails its checksum or whose call fails
+ * is asked for again from the same offset, and the whole payload is checked once it has all been read.
+ */
+
+package canvas;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+public class ChunkedInput extends InputStream {
+
+    // Attempts at a chunk before the transfer is given up, configurable with -Dwhiteboard.transfer.retries
+    public static final int retries = Math.max(1, Integer.getInteger("whiteboard.transfer.retries", 5));
+
+    // Sends the chunk of a transfer starting at an offset, null if the transfer is no longer kept
+    public interface Source {
+        Chunk chunk(long id, long offset) throws IOException;
+    }
+
+    private final Source source;
+    private final long id;
+    private final long total;
+    private final long totalCrc;
+    // Checksum of everything read so far
+    private final CRC32 crc = new CRC32();
+    private Chunk current;
+    // Position in the current chunk
+    private int pos = 0;
+    // Chunks asked for again
+    private int retried = 0;
+
+    public ChunkedInput(Source source, Chunk first) throws IOException {
+        this.source = source;
+        this.id = first.getId();
+        this.total = first.getTotal();
+        this.totalCrc = first.getTotalCrc();
+        if (!first.isIntact()) {
+            first = fetch(first.getOffset());
+        }
+        this.current = first;
+        this.crc.update(first.getData());
+    }
+
+    // Decode an image sent in chunks, checking the whole of it
+    public static BufferedImage readImage(Source source, Chunk first) throws IOException {
+        try (ChunkedInput in = new ChunkedInput(source, first)) {
+            BufferedImage image = ImageIO.read(in);
+            in.verify();
+            if (image == null) {
+                throw new IOException("Transfer " + first.getId() + " is not an image");
+            }
+            return image;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!advance()) {
+            return -1;
+        }
+        return current.getData()[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!advance()) {
+            return -1;
+        }
+        int n = Math.min(len, current.getData().length - pos);
+        System.arraycopy(current.getData(), pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.getData().length - pos;
+    }
+
+    // Read whatever is left and check the whole payload against its checksum
+    public void verify() throws IOException {
+        while (advance()) {
+            pos = current.getData().length;
+        }
+        if (crc.getValue() != totalCrc) {
+            throw new IOException("Transfer " + id + " does not match its checksum");
+        }
+    }
+
+    // Chunks asked for again after a failed call or checksum
+    public int getRetried() {
+        return retried;
+    }
+
+    // Move on to the next chunk once the current one is used up, false at the end of the payload
+    private boolean advance() throws IOException {
+        while (pos >= current.getData().length) {
+            if (current.isLast()) {
+                return false;
+            }
+            current = fetch(current.getOffset() + current.getData().length);
+            pos = 0;
+            crc.update(current.getData());
+        }
+        return true;
+    }
+
+    // Ask for the chunk at an offset until it arrives intact, backing off between attempts
+    private Chunk fetch(long offset) throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < retries; i++) {
+            if (i > 0) {
+                retried++;
+                try {
+                    Thread.sleep(50L << i);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            Chunk chunk;
+            try {
+                chunk = source.chunk(id, offset);
+            } catch (IOException e) {
+                failure = e;
+                continue;
+            }
+            if (chunk == null) {
+                throw new IOException("Transfer " + id + " is no longer available");
+            }
+            if (chunk.isIntact() && chunk.getOffset() == offset && chunk.getData().length > 0) {
+                return chunk;
+            }
+        }
+        throw failure != null ? failure : new IOException("Transfer " + id + " failed at offset " + offset);
+    }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Class for board pixels kept outside the Java heap, in a direct buffer.
+ * Pieces are read and written a row at a time. Drawing goes through a heap copy of the piece it covers,
+ * so Graphics2D uses the same loops, and gives the same pixels, as on a heap image,
+ * and a heap image only ever exists for the piece being drawn or encoded.
+ * A hosted board then costs the garbage collector a few small objects instead of a large pixel array.
+ */
+
+package canvas;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.function.Consumer;
+
+public class DirectRaster extends DataBuffer {
+
+    private static final int[] masks = {0xff0000, 0xff00, 0xff};
+
+    private final IntBuffer pixels;
+    private final int width;
+    private final int height;
+
+    private DirectRaster(int width, int height) {
+        super(TYPE_INT, width * height);
+        this.width = width;
+        this.height = height;
+        this.pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    // RGB image with its pixels outside the heap
+    public static BufferedImage image(int width, int height) {
+        DirectRaster buffer = new DirectRaster(width, height);
+        WritableRaster raster = Raster.createWritableRaster(
+                new SinglePixelPackedSampleModel(TYPE_INT, width, height, masks), buffer, null);
+        return new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null);
+    }
+
+    // Pixels of an image built by image(), null for any other image
+    public static DirectRaster of(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return buffer instanceof DirectRaster ? (DirectRaster) buffer : null;
+    }
+
+    @Override
+    public int getElem(int bank, int i) {
+        return pixels.get(i);
+    }
+
+    @Override
+    public void setElem(int bank, int i, int val) {
+        pixels.put(i, val);
+    }
+
+    // Draw on a piece of the pixels through a heap copy of it, the painter draws in board coordinates
+    public void paint(Rectangle area, Consumer<Graphics2D> painter) {
+        Rectangle r = area.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return;
+        }
+        BufferedImage piece = copy(r);
+        Graphics2D g = piece.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.translate(-r.x, -r.y);
+        painter.accept(g);
+        g.dispose();
+        write(piece, r.x, r.y);
+    }
+
+    // Set every pixel to a color
+    public void fill(Color color) {
+        int rgb = color.getRGB() & 0xffffff;
+        for (int i = 0; i < pixels.capacity(); i++) {
+            pixels.put(i, rgb);
+        }
+    }
+
+    // Heap copy of a piece, clipped to the raster, for encoding
+    public BufferedImage copy(Rectangle area) {
+        Rectangle r = area.intersection(new Rectangle(0, 0, width, height));
+        BufferedImage res = new BufferedImage(Math.max(1, r.width), Math.max(1, r.height), BufferedImage.TYPE_INT_RGB);
+        int[] dst = ((DataBufferInt) res.getRaster().getDataBuffer()).getData();
+        IntBuffer src = pixels.duplicate();
+        for (int row = 0; row < r.height; row++) {
+            src.position((r.y + row) * width + r.x);
+            src.get(dst, row * r.width, r.width);
+        }
+        return res;
+    }
+
+    // Draw an image over the pixels at x, y, an opaque one is written straight in
+    public void draw(BufferedImage image, int x, int y) {
+        if (image.getTransparency() == Transparency.OPAQUE) {
+            write(image, x, y);
+        } else {
+            paint(new Rectangle(x, y, image.getWidth(), image.getHeight()), g -> g.drawImage(image, x, y, null));
+        }
+    }
+
+    // Write an opaque image over the pixels at x, y, clipped to the raster
+    private void write(BufferedImage image, int x, int y) {
+        Rectangle r = new Rectangle(x, y, image.getWidth(), image.getHeight()).intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return;
+        }
+        int[] row = new int[r.width];
+        IntBuffer dst = pixels.duplicate();
+        for (int i = 0; i < r.height; i++) {
+            image.getRGB(r.x - x, r.y - y + i, r.width, 1, row, 0, r.width);
+            for (int j = 0; j < r.width; j++) {
+                row[j] &= 0xffffff;
+            }
+            dst.position((r.y + i) * width + r.x);
+            dst.put(row, 0, r.width);
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+/**
+ * Class for drawing stroke segments straight into the pixels of a TYPE_INT_RGB image.
+ * A segment is drawn as a capsule with antialiased edges, without the Graphics2D pipeline
+ * and the paint, stroke and shape objects it sets up for every event.
+ * Only opaque colors are supported, which is all the board has.
+ */
+
+package canvas;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+public class FastRaster {
+
+    private static final int tableSize = 256;
+
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+
+    // Segment being drawn, kept in fields so the per-row and per-pixel steps only multiply
+    private double ax, ay, bx, by, dx, dy, len, ux, uy, invUx, invUy, invLen2;
+    // Whether the round end at the start is drawn, it is already there when the segment continues a stroke
+    private boolean startCap;
+    // Range of x found by span()
+    private double lo, hi;
+    // Coverage by squared distance between the fully covered and the uncovered distance, for the last line width
+    private final int[] coverage = new int[tableSize + 1];
+    private float coverageWidth = -1;
+    private double coverageFrom, coverageTo, coverageScale;
+
+    public FastRaster(BufferedImage image) {
+        // Taking the pixel array stops Java2D from caching the image in video memory, which the board does not rely on
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+    }
+
+    public static boolean supports(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_INT_RGB;
+    }
+
+    // Draw a segment with round ends, returns the area changed, empty if nothing was drawn
+    public Rectangle line(Point a, Point b, float lineWidth, Color color) {
+        return line(a, b, lineWidth, color, true);
+    }
+
+    // Draw a segment, leaving out what the round end of the previous segment has covered when it continues a stroke.
+    // This also keeps the antialiased edges from being blended twice where segments meet.
+    // Not thread safe, callers draw one segment at a time
+    public Rectangle line(Point a, Point b, float lineWidth, Color color, boolean startCap) {
+        if (!startCap && a.equals(b)) {
+            return new Rectangle();
+        }
+        double r = lineWidth / 2.0;
+        // Pixels closer than inner to the segment are fully covered, further than outer not at all
+        double outer = r + 0.5;
+        double inner = r - 0.5;
+        int x0 = Math.max(0, (int) Math.floor(Math.min(a.x, b.x) - outer));
+        int y0 = Math.max(0, (int) Math.floor(Math.min(a.y, b.y) - outer));
+        int x1 = Math.min(width - 1, (int) Math.ceil(Math.max(a.x, b.x) + outer));
+        int y1 = Math.min(height - 1, (int) Math.ceil(Math.max(a.y, b.y) + outer));
+        if (x0 > x1 || y0 > y1) {
+            return new Rectangle();
+        }
+
+        ax = a.x;
+        ay = a.y;
+        bx = b.x;
+        by = b.y;
+        dx = bx - ax;
+        dy = by - ay;
+        len = Math.sqrt(dx * dx + dy * dy);
+        ux = len == 0 ? 0 : dx / len;
+        uy = len == 0 ? 0 : dy / len;
+        invUx = ux == 0 ? 0 : 1 / ux;
+        invUy = uy == 0 ? 0 : 1 / uy;
+        invLen2 = len == 0 ? 0 : 1 / (len * len);
+        this.startCap = startCap;
+        int rgb = color.getRGB() & 0xffffff;
+        if (lineWidth != coverageWidth) {
+            coverageTable(lineWidth, outer, inner);
+        }
+
+        for (int y = y0; y <= y1; y++) {
+            // Pixels of the row within reach of the segment
+            if (!span(y, outer)) {
+                continue;
+            }
+            int from = Math.max(x0, (int) Math.ceil(lo));
+            int to = Math.min(x1, (int) Math.floor(hi));
+            // Pixels fully covered are filled, only the ones around them are blended
+            int fillFrom = to + 1, fillTo = to;
+            if (inner >= 1 && span(y, inner)) {
+                fillFrom = Math.max(from, (int) Math.ceil(lo));
+                fillTo = Math.min(to, (int) Math.floor(hi));
+            }
+            int row = y * width;
+            if (fillFrom > fillTo) {
+                fillFrom = to + 1;
+                fillTo = to;
+            } else {
+                Arrays.fill(pixels, row + fillFrom, row + fillTo + 1, rgb);
+            }
+            for (int x = from; x < fillFrom; x++) {
+                blend(row + x, rgb, coverage(x, y));
+            }
+            for (int x = fillTo + 1; x <= to; x++) {
+                blend(row + x, rgb, coverage(x, y));
+            }
+        }
+        return new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+
+    // Range of x on row y within distance reach of the segment, false if there is none
+    private boolean span(int y, double reach) {
+        lo = Double.POSITIVE_INFINITY;
+        hi = Double.NEGATIVE_INFINITY;
+        double reach2 = reach * reach;
+        // Round ends
+        double ha = y - ay, hb = y - by;
+        if (startCap && ha * ha < reach2) {
+            double half = Math.sqrt(reach2 - ha * ha);
+            lo = ax - half;
+            hi = ax + half;
+        }
+        if (hb * hb < reach2) {
+            double half = Math.sqrt(reach2 - hb * hb);
+            lo = Math.min(lo, bx - half);
+            hi = Math.max(hi, bx + half);
+        }
+        if (len == 0) {
+            return lo <= hi;
+        }
+        double along = ha * uy;
+        // Band along the segment: 0 <= along <= len and |across| <= reach, both linear in x
+        double bandLo = Double.NEGATIVE_INFINITY, bandHi = Double.POSITIVE_INFINITY;
+        // along = (x - ax) * ux + ha * uy
+        if (ux != 0) {
+            double e0 = ax - along * invUx, e1 = ax + (len - along) * invUx;
+            bandLo = Math.min(e0, e1);
+            bandHi = Math.max(e0, e1);
+        } else if (along < 0 || along > len) {
+            return clip(along);
+        }
+        // across = ha * ux - (x - ax) * uy
+        double across = ha * ux;
+        if (uy != 0) {
+            double e0 = ax + (across - reach) * invUy, e1 = ax + (across + reach) * invUy;
+            bandLo = Math.max(bandLo, Math.min(e0, e1));
+            bandHi = Math.min(bandHi, Math.max(e0, e1));
+        } else if (across * across >= reach2) {
+            return clip(along);
+        }
+        if (bandLo <= bandHi) {
+            lo = Math.min(lo, bandLo);
+            hi = Math.max(hi, bandHi);
+        }
+        return clip(along);
+    }
+
+    // Without the start cap, keep the span ahead of the start point: (x - ax) * ux + along > 0
+    private boolean clip(double along) {
+        if (!startCap) {
+            if (ux > 0) {
+                lo = Math.max(lo, ax - along * invUx + 1e-9);
+            } else if (ux < 0) {
+                hi = Math.min(hi, ax - along * invUx - 1e-9);
+            } else if (along <= 0) {
+                return false;
+            }
+        }
+        return lo <= hi;
+    }
+
+    // Coverage falls from full at the inner distance to none at the outer one, looked up to save a square root per pixel
+    private void coverageTable(float lineWidth, double outer, double inner) {
+        coverageFrom = inner > 0 ? inner * inner : 0;
+        coverageTo = outer * outer;
+        coverageScale = tableSize / (coverageTo - coverageFrom);
+        for (int i = 0; i <= tableSize; i++) {
+            double d = outer - Math.sqrt(coverageFrom + i / coverageScale);
+            coverage[i] = d <= 0 ? 0 : (d >= 1 ? 256 : (int) (d * 256));
+        }
+        coverageWidth = lineWidth;
+    }
+
+    // Share of pixel (x, y) covered by the segment, from 0 to 256
+    private int coverage(int x, int y) {
+        double qx = x - ax, qy = y - ay;
+        double t = (qx * dx + qy * dy) * invLen2;
+        t = t < 0 ? 0 : (t > 1 ? 1 : t);
+        double ex = qx - t * dx, ey = qy - t * dy;
+        double d2 = ex * ex + ey * ey;
+        if (d2 >= coverageTo) {
+            return 0;
+        }
+        if (d2 <= coverageFrom) {
+            return 256;
+        }
+        return coverage[(int) ((d2 - coverageFrom) * coverageScale)];
+    }
+
+    private void blend(int i, int rgb, int alpha) {
+        if (alpha == 0) {
+            return;
+        }
+        int dst = pixels[i];
+        int dr = (dst >> 16) & 0xff, dg = (dst >> 8) & 0xff, db = dst & 0xff;
+        dr += (((rgb >> 16) & 0xff) - dr) * alpha >> 8;
+        dg += (((rgb >> 8) & 0xff) - dg) * alpha >> 8;
+        db += ((rgb & 0xff) - db) * alpha >> 8;
+        pixels[i] = (dr << 16) | (dg << 8) | db;
+    }
+
+}
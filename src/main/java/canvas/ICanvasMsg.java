@@ -22,4 +22,16 @@ public interface ICanvasMsg extends Remote {
 
     String getUsername() throws RemoteException;
 
+    // Whether a painting segment is drawn without antialiasing, decided by the drawer so every board draws it alike
+    boolean isRough() throws RemoteException;
+
+    // Origin sequence id and timestamps, null for events made up by the server
+    Trace getTrace() throws RemoteException;
+
+    // Sequence number given by the server, 0 until the server has stamped it
+    long getSeq() throws RemoteException;
+
+    // Sequence number of the update the server sent to the same client before this one
+    long getPrevSeq() throws RemoteException;
+
 }
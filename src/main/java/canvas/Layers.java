@@ -0,0 +1,196 @@
+/**
+ * Class for a board made of one layer per user over a base image.
+ * Layers are split into tiles which are only allocated where the user has drawn,
+ * and the composite is kept as an image where only the tiles marked dirty are redrawn,
+ * so clearing or hiding a layer costs time in proportion to the area it covers.
+ */
+
+package canvas;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public class Layers {
+
+    public static final int tileSize = 64;
+
+    private static class Layer {
+        // Transparent tiles in row-major order, null where nothing has been drawn
+        private final BufferedImage[] tiles;
+        private boolean visible = true;
+
+        Layer(int count) {
+            tiles = new BufferedImage[count];
+        }
+    }
+
+    private final int cols, rows;
+    // Cached composite of the base and every visible layer
+    private final BufferedImage composite;
+    // Opened canvas or joining snapshot, under every layer
+    private final BufferedImage base;
+    // Pixels of the composite and the base when they are kept outside the heap, null otherwise
+    private final DirectRaster directComposite, directBase;
+    // Layers in the order of their first drawing, later ones on top
+    private final Map<String, Layer> layers = new LinkedHashMap<>();
+    // Tiles of the composite which need to be redrawn
+    private final BitSet dirty;
+
+    public Layers(BufferedImage composite) {
+        this.composite = composite;
+        this.cols = (composite.getWidth() + tileSize - 1) / tileSize;
+        this.rows = (composite.getHeight() + tileSize - 1) / tileSize;
+        this.dirty = new BitSet(cols * rows);
+        // The base is kept where the composite is, in or outside the heap
+        this.directComposite = DirectRaster.of(composite);
+        this.base = directComposite != null ? DirectRaster.image(composite.getWidth(), composite.getHeight())
+                : new BufferedImage(composite.getWidth(), composite.getHeight(), BufferedImage.TYPE_INT_RGB);
+        this.directBase = DirectRaster.of(base);
+        reset(null);
+    }
+
+    // Paint on a user's layer within an area, once for every tile the area touches
+    public void paint(String name, Rectangle area, Consumer<Graphics2D> painter) {
+        Layer layer = layers.computeIfAbsent(name, n -> new Layer(cols * rows));
+        Rectangle r = area.intersection(new Rectangle(0, 0, composite.getWidth(), composite.getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        for (int row = r.y / tileSize; row <= (r.y + r.height - 1) / tileSize; row++) {
+            for (int col = r.x / tileSize; col <= (r.x + r.width - 1) / tileSize; col++) {
+                int i = row * cols + col;
+                if (layer.tiles[i] == null) {
+                    layer.tiles[i] = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+                }
+                Graphics2D g = layer.tiles[i].createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.translate(-col * tileSize, -row * tileSize);
+                painter.accept(g);
+                g.dispose();
+                if (layer.visible) {
+                    dirty.set(i);
+                }
+            }
+        }
+    }
+
+    // Drop everything drawn on a user's layer
+    public void clear(String name) {
+        Layer layer = layers.remove(name);
+        if (layer != null && layer.visible) {
+            markAllocated(layer);
+        }
+    }
+
+    // Show or hide a user's layer
+    public void setVisible(String name, boolean visible) {
+        Layer layer = layers.get(name);
+        if (layer != null && layer.visible != visible) {
+            layer.visible = visible;
+            markAllocated(layer);
+        }
+    }
+
+    public boolean isVisible(String name) {
+        Layer layer = layers.get(name);
+        return layer == null || layer.visible;
+    }
+
+    // Users who have a layer, bottom first
+    public List<String> getNames() {
+        return new ArrayList<>(layers.keySet());
+    }
+
+    // Drop every layer and start again from an image, or a white board if null
+    public void reset(BufferedImage image) {
+        layers.clear();
+        if (directBase != null) {
+            directBase.fill(Color.white);
+            if (image != null) {
+                directBase.draw(image, 0, 0);
+            }
+        } else {
+            Graphics2D g = base.createGraphics();
+            g.setPaint(Color.white);
+            g.fillRect(0, 0, base.getWidth(), base.getHeight());
+            if (image != null) {
+                g.drawImage(image, 0, 0, null);
+            }
+            g.dispose();
+        }
+        dirty.set(0, cols * rows);
+    }
+
+    // Draw a piece of the image under every layer
+    public void paintBase(BufferedImage image, int x, int y) {
+        if (directBase != null) {
+            directBase.draw(image, x, y);
+        } else {
+            Graphics2D g = base.createGraphics();
+            g.drawImage(image, x, y, null);
+            g.dispose();
+        }
+        int x1 = Math.min(composite.getWidth(), x + image.getWidth()) - 1;
+        int y1 = Math.min(composite.getHeight(), y + image.getHeight()) - 1;
+        for (int row = Math.max(0, y) / tileSize; row <= y1 / tileSize; row++) {
+            for (int col = Math.max(0, x) / tileSize; col <= x1 / tileSize; col++) {
+                dirty.set(row * cols + col);
+            }
+        }
+    }
+
+    // Redraw the dirty tiles of the composite, returns the area redrawn or null if nothing was
+    public Rectangle compose() {
+        if (dirty.isEmpty()) {
+            return null;
+        }
+        Rectangle area = null;
+        Graphics2D g = directComposite == null ? composite.createGraphics() : null;
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+            int x = (i % cols) * tileSize;
+            int y = (i / cols) * tileSize;
+            Rectangle tile = new Rectangle(x, y, tileSize, tileSize);
+            if (directComposite != null) {
+                // The tile is put together on a heap copy of the base and written out once
+                BufferedImage piece = directBase.copy(tile);
+                Graphics2D pg = piece.createGraphics();
+                drawLayers(pg, i, 0, 0);
+                pg.dispose();
+                directComposite.draw(piece, x, y);
+            } else {
+                g.drawImage(base, x, y, x + tileSize, y + tileSize, x, y, x + tileSize, y + tileSize, null);
+                drawLayers(g, i, x, y);
+            }
+            area = area == null ? tile : area.union(tile);
+        }
+        if (g != null) {
+            g.dispose();
+        }
+        dirty.clear();
+        return area;
+    }
+
+    // Draw the visible layers' tiles at one place at x, y
+    private void drawLayers(Graphics2D g, int i, int x, int y) {
+        for (Layer layer : layers.values()) {
+            if (layer.visible && layer.tiles[i] != null) {
+                g.drawImage(layer.tiles[i], x, y, null);
+            }
+        }
+    }
+
+    private void markAllocated(Layer layer) {
+        for (int i = 0; i < layer.tiles.length; i++) {
+            if (layer.tiles[i] != null) {
+                dirty.set(i);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Class for sending previews of a shape being dragged to the server.
+ * Only the latest preview is kept and it is sent at most previewRate times per second
+ * by a thread of its own, so the mouse listeners never wait on the network.
+ * Previews that cannot be sent are dropped, the committed shape follows at paintEnd anyway.
+ */
+
+package canvas;
+
+import server.IBoardMgr;
+
+import java.rmi.RemoteException;
+
+public class PreviewSender implements Runnable {
+
+    // Previews sent per second by each user, configurable with -Dwhiteboard.preview.rate, 0 disables them
+    public static final int previewRate = Integer.getInteger("whiteboard.preview.rate", 15);
+
+    private final IBoardMgr boardMgr;
+    // Latest preview not sent yet
+    private CanvasEvent latest;
+    private Thread thread;
+
+    public PreviewSender(IBoardMgr boardMgr) {
+        this.boardMgr = boardMgr;
+    }
+
+    // Replace the preview waiting to be sent
+    public synchronized void offer(CanvasEvent preview) {
+        if (previewRate <= 0) {
+            return;
+        }
+        latest = preview;
+        if (thread == null) {
+            thread = new Thread(this, "preview");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    // Drop the waiting preview once the shape is committed
+    public synchronized void cancel() {
+        latest = null;
+    }
+
+    private synchronized CanvasEvent take() throws InterruptedException {
+        while (latest == null) {
+            wait();
+        }
+        CanvasEvent preview = latest;
+        latest = null;
+        return preview;
+    }
+
+    @Override
+    public void run() {
+        long interval = 1000 / previewRate;
+        while (true) {
+            try {
+                boardMgr.previewMsg(take());
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RemoteException e) {
+                System.out.println("Unable to send a preview!");
+            }
+        }
+    }
+
+}
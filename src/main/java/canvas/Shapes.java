@@ -0,0 +1,48 @@
+/**
+ * Geometry of the shapes which can be drawn on the canvas.
+ * Shared by the Swing canvas and the server's copy of the board.
+ */
+
+package canvas;
+
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+
+public class Shapes {
+
+    public static Shape line(Point start, Point end) {
+        return new Line2D.Double(start.x, start.y, end.x, end.y);
+    }
+
+    public static Shape circle(Point start, Point end) {
+        int width = Math.abs(start.x - end.x);
+        int height = Math.abs(start.y - end.y);
+        int x = Math.min(start.x, end.x);
+        int y = Math.min(start.y, end.y);
+        return new Ellipse2D.Double(x, y, Math.max(width, height), Math.max(width, height));
+    }
+
+    public static Shape triangle(Point start, Point end) {
+        int minX = Math.min(start.x, end.x);
+        int maxX = Math.max(start.x, end.x);
+        int minY = Math.min(start.y, end.y);
+        int maxY = Math.max(start.y, end.y);
+        int[] x = {minX, (minX + maxX)/2, maxX};
+        int[] y = {maxY, minY, maxY};
+        if (end.y < start.y) {
+            y = new int[]{minY, maxY, minY};
+        }
+        return new Polygon(x, y, 3);
+    }
+
+    public static Shape rectangle(Point start, Point end) {
+        int width = Math.abs(start.x - end.x);
+        int height = Math.abs(start.y - end.y);
+        int x = Math.min(start.x, end.x);
+        int y = Math.min(start.y, end.y);
+        return new Rectangle2D.Double(x, y, width, height);
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Ramer–Douglas–Peucker simplification of free-hand strokes.
+ * Every dropped point lies within the tolerance of the simplified polyline.
+ */
+
+package canvas;
+
+import java.awt.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Simplify {
+
+    // Result of simplifying one stroke
+    public static class Result {
+
+        private final List<Point> points;
+        private final double maxError;
+
+        Result(List<Point> points, double maxError) {
+            this.points = points;
+            this.maxError = maxError;
+        }
+
+        public List<Point> getPoints() {
+            return points;
+        }
+
+        // Largest distance between a dropped point and the simplified stroke, in pixels
+        public double getMaxError() {
+            return maxError;
+        }
+
+    }
+
+    // Keep only the points needed to stay within tolerance pixels of the original stroke
+    public static Result stroke(List<Point> points, double tolerance) {
+        int n = points.size();
+        if (n < 3 || tolerance <= 0) {
+            return new Result(new ArrayList<>(points), 0);
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        double maxError = 0;
+
+        // Iterate with an explicit stack, long strokes would overflow recursion
+        ArrayDeque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{0, n - 1});
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            int first = range[0], last = range[1];
+            double furthest = -1;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = distance(points.get(i), points.get(first), points.get(last));
+                if (d > furthest) {
+                    furthest = d;
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                continue;
+            }
+            if (furthest > tolerance) {
+                keep[index] = true;
+                ranges.push(new int[]{first, index});
+                ranges.push(new int[]{index, last});
+            } else {
+                maxError = Math.max(maxError, furthest);
+            }
+        }
+
+        List<Point> res = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                res.add(points.get(i));
+            }
+        }
+        return new Result(res, maxError);
+    }
+
+    // Distance from p to the segment a-b
+    private static double distance(Point p, Point a, Point b) {
+        double dx = b.x - a.x, dy = b.y - a.y;
+        double len = dx * dx + dy * dy;
+        if (len == 0) {
+            return p.distance(a);
+        }
+        double t = Math.max(0, Math.min(1, ((p.x - a.x) * dx + (p.y - a.y) * dy) / len));
+        return Math.hypot(p.x - (a.x + t * dx), p.y - (a.y + t * dy));
+    }
+
+}
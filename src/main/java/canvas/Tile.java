@@ -0,0 +1,88 @@
+/**
+ * Class for a piece of the board sent by value, used to load the board progressively.
+ * A joiner is first sent a low-resolution preview of the whole board, then full-resolution tiles,
+ * the ones in view first, so the board shows up long before all of it has arrived.
+ */
+
+package canvas;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+public class Tile implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Progressive join and open, disabled with -Dwhiteboard.progressive=false on the clients
+    public static final boolean progressive = !"false".equals(System.getProperty("whiteboard.progressive"));
+    // The preview is this many times smaller than the board, configurable with -Dwhiteboard.progressive.scale
+    public static final int previewScale = Math.max(1, Integer.getInteger("whiteboard.progressive.scale", 8));
+    // Side of the full-resolution tiles asked for, configurable with -Dwhiteboard.progressive.tileSize
+    public static final int size = Math.max(16, Integer.getInteger("whiteboard.progressive.tileSize", 128));
+
+    // Area of the board the tile covers
+    private final Rectangle area;
+    // Sequence number of the board when the tile was taken
+    private final long seq;
+    // PNG, smaller than the area for a preview
+    private final byte[] image;
+
+    public Tile(Rectangle area, long seq, byte[] image) {
+        this.area = area;
+        this.seq = seq;
+        this.image = image;
+    }
+
+    // Encode a piece of the board, scaled down to fit width by height
+    public static Tile encode(BufferedImage piece, Rectangle area, long seq, int width, int height) throws IOException {
+        BufferedImage scaled = piece;
+        if (width != piece.getWidth() || height != piece.getHeight()) {
+            scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = scaled.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(piece, 0, 0, width, height, null);
+            g.dispose();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(scaled, "png", out);
+        return new Tile(area, seq, out.toByteArray());
+    }
+
+    // The same piece stamped with another sequence number, such as the last one sent to the client asking for it
+    public Tile withSeq(long seq) {
+        return new Tile(area, seq, image);
+    }
+
+    public Rectangle getArea() {
+        return area;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public byte[] getImage() {
+        return image;
+    }
+
+    // Image stretched over the whole area it covers, null if it cannot be decoded
+    public BufferedImage decode() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(this.image));
+        if (image == null || (image.getWidth() == area.width && image.getHeight() == area.height)) {
+            return image;
+        }
+        BufferedImage res = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = res.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, area.width, area.height, null);
+        g.dispose();
+        return res;
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Class for the origin and hop timestamps of a drawing event.
+ * Every event carries its drawer's sequence id and input time.
+ * Sampled events are also stamped at the server and at dispatch, so the
+ * receiving client can break the latency down by hop.
+ * Times are microseconds since the epoch, hops across machines rely on synchronised clocks.
+ */
+
+package canvas;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class Trace implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Share of events traced hop by hop, configurable with -Dwhiteboard.trace.sampleRate
+    public static final double sampleRate = Double.parseDouble(System.getProperty("whiteboard.trace.sampleRate", "0.01"));
+
+    // Hop names used by the latency histograms
+    public static final String inputToServer = "inputToServer";
+    public static final String serverQueue = "serverQueue";
+    public static final String dispatchToRender = "dispatchToRender";
+    public static final String endToEnd = "endToEnd";
+
+    private final long originSeq;
+    private final long originTime;
+    private final boolean sampled;
+    private final long receivedTime;
+    private final long dispatchTime;
+
+    private Trace(long originSeq, long originTime, boolean sampled, long receivedTime, long dispatchTime) {
+        this.originSeq = originSeq;
+        this.originTime = originTime;
+        this.sampled = sampled;
+        this.receivedTime = receivedTime;
+        this.dispatchTime = dispatchTime;
+    }
+
+    // Trace of an event created by the drawer at its input
+    public static Trace origin(long originSeq) {
+        return new Trace(originSeq, now(), ThreadLocalRandom.current().nextDouble() < sampleRate, 0, 0);
+    }
+
+    // Wall clock time in microseconds
+    public static long now() {
+        Instant t = Instant.now();
+        return t.getEpochSecond() * 1000000 + t.getNano() / 1000;
+    }
+
+    public Trace received(long time) {
+        return new Trace(originSeq, originTime, sampled, time, dispatchTime);
+    }
+
+    public Trace dispatched(long time) {
+        return new Trace(originSeq, originTime, sampled, receivedTime, time);
+    }
+
+    public long getOriginSeq() {
+        return originSeq;
+    }
+
+    public long getOriginTime() {
+        return originTime;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+
+    public long getDispatchTime() {
+        return dispatchTime;
+    }
+
+}
@@ -41,6 +41,8 @@ public class Utils {
     public static final String paintStart = "paintStart";
     public static final String painting = "painting";
     public static final String paintEnd = "paintEnd";
+    // Shape being dragged, shown to others but never drawn on the board
+    public static final String preview = "preview";
 
     // Emphasize selections with borders
     public static final Color bgColor = new Color(238, 238, 238);
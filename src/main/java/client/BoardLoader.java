@@ -0,0 +1,193 @@
+/**
+ * Class for loading the board progressively from the server.
+ * A low-resolution preview of the whole board is shown first, then full-resolution tiles are loaded
+ * a few at a time in the background, the ones in view first and then outwards, so the board is usable right away.
+ * Every piece is stamped with the last update the server had sent this client when it was taken, and is drawn
+ * once exactly those updates have been applied; one older than the updates already applied is asked for again.
+ * The server never sends a client its own strokes, so a tile would wipe the ones drawn after it was taken;
+ * drawing is held back until the tiles in view are in, and a tile which cannot be loaded is made up for with a snapshot.
+ */
+
+package client;
+
+import canvas.BoardEngine;
+import canvas.Tile;
+import canvas.Utils;
+import metrics.ClientMetrics;
+import server.IBoardMgr;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+public class BoardLoader {
+
+    // Attempts at a tile which keeps being older than the updates already applied
+    private static final int attempts = 5;
+    // Time a tile waits for the updates sent before it was taken
+    private static final long waitMillis = 2000;
+    // Tiles asked for at the same time, configurable with -Dwhiteboard.progressive.parallel
+    public static final int parallel = Math.max(1, Integer.getInteger("whiteboard.progressive.parallel", 4));
+
+    private final IBoardMgr server;
+    // Name the server knows this client by, which it may change after login
+    private final Supplier<String> username;
+    private final BoardEngine engine;
+    private final Sequencer sequencer;
+    private final ClientMetrics metrics;
+    // Part of the board in view, loaded first
+    private volatile Supplier<Rectangle> visible = () -> new Rectangle(0, 0, Utils.canvasWidth, Utils.canvasHeight);
+    // Told false when a load starts and true once the tiles in view are in, drawing is held back in between
+    private volatile Consumer<Boolean> drawable = d -> { };
+    // A newer load stops the older one
+    private final AtomicInteger generation = new AtomicInteger();
+
+    public BoardLoader(IBoardMgr server, Supplier<String> username, BoardEngine engine, Sequencer sequencer, ClientMetrics metrics) {
+        this.server = server;
+        this.username = username;
+        this.engine = engine;
+        this.sequencer = sequencer;
+        this.metrics = metrics;
+    }
+
+    public void setVisible(Supplier<Rectangle> visible) {
+        this.visible = visible;
+    }
+
+    public void setDrawable(Consumer<Boolean> drawable) {
+        this.drawable = drawable;
+    }
+
+    // Show a preview of the board and then load its tiles
+    public void join() {
+        int current = generation.incrementAndGet();
+        drawable.accept(false);
+        start(() -> {
+            long start = System.nanoTime();
+            try {
+                Tile preview = server.sendCanvasPreview(username.get());
+                BufferedImage image = preview.decode();
+                if (image != null) {
+                    sequencer.startAt(preview.getSeq(), () -> engine.override(image));
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to load a preview of the board!");
+            }
+            metrics.load("preview", System.nanoTime() - start);
+            loadTiles(current, start);
+        });
+    }
+
+    // Load the tiles over a preview already shown, such as the one of an opened canvas
+    public void refine() {
+        int current = generation.incrementAndGet();
+        drawable.accept(false);
+        start(() -> loadTiles(current, System.nanoTime()));
+    }
+
+    private void start(Runnable load) {
+        Thread t = new Thread(load, "board-loader");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Load the tiles in order, several at a time, the last thread to finish records the time taken
+    private void loadTiles(int current, long start) {
+        Rectangle view = visible.get();
+        List<Rectangle> order = order(view);
+        Load load = new Load(current, start, view, order);
+        if (load.inView.get() == 0) {
+            drawable.accept(true);
+        }
+        for (int i = 1; i < parallel; i++) {
+            start(() -> loadTiles(load));
+        }
+        loadTiles(load);
+    }
+
+    private void loadTiles(Load load) {
+        Rectangle area;
+        while ((area = load.tiles.poll()) != null) {
+            if (generation.get() != load.current) {
+                return;
+            }
+            if (!loadTile(area)) {
+                System.out.println("Unable to load a tile of the board, asking for a snapshot");
+                sequencer.snapshot();
+            }
+            if (area.intersects(load.view) && load.inView.decrementAndGet() == 0 && generation.get() == load.current) {
+                drawable.accept(true);
+            }
+        }
+        if (load.running.decrementAndGet() == 0) {
+            metrics.load("complete", System.nanoTime() - load.start);
+        }
+    }
+
+    // Draw one tile, false if it could not be
+    private boolean loadTile(Rectangle area) {
+        try {
+            for (int i = 0; i < attempts; i++) {
+                Tile tile = server.sendCanvasTile(username.get(), area);
+                BufferedImage image = tile.decode();
+                if (image == null) {
+                    return false;
+                }
+                Rectangle at = tile.getArea();
+                if (sequencer.applyAt(tile.getSeq(), () -> engine.drawTile(image, at.x, at.y), waitMillis)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to load a tile of the board!");
+        }
+        return false;
+    }
+
+    // One load of the tiles, shared by the threads doing it
+    private static class Load {
+        private final int current;
+        private final long start;
+        private final Rectangle view;
+        private final Queue<Rectangle> tiles;
+        private final AtomicInteger running = new AtomicInteger(parallel);
+        // Tiles in view still to load
+        private final AtomicInteger inView;
+
+        Load(int current, long start, Rectangle view, List<Rectangle> order) {
+            this.current = current;
+            this.start = start;
+            this.view = view;
+            this.tiles = new ConcurrentLinkedQueue<>(order);
+            this.inView = new AtomicInteger((int) order.stream().filter(view::intersects).count());
+        }
+    }
+
+    // Tiles of the board, the ones in view first, then by distance from the middle of the view
+    static List<Rectangle> order(Rectangle view) {
+        List<Rectangle> res = new ArrayList<>();
+        for (int y = 0; y < Utils.canvasHeight; y += Tile.size) {
+            for (int x = 0; x < Utils.canvasWidth; x += Tile.size) {
+                res.add(new Rectangle(x, y, Math.min(Tile.size, Utils.canvasWidth - x), Math.min(Tile.size, Utils.canvasHeight - y)));
+            }
+        }
+        double cx = view.getCenterX(), cy = view.getCenterY();
+        res.sort((a, b) -> {
+            boolean inA = a.intersects(view), inB = b.intersects(view);
+            if (inA != inB) {
+                return inA ? -1 : 1;
+            }
+            return Double.compare(a.getLocation().distanceSq(cx - Tile.size / 2.0, cy - Tile.size / 2.0),
+                    b.getLocation().distanceSq(cx - Tile.size / 2.0, cy - Tile.size / 2.0));
+        });
+        return res;
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Class for opening an image file as the canvas without holding the whole image in memory.
+ * The file is decoded with subsampling to a few times the board's size, scaled down to fit the board,
+ * and handed over in bands of rows, so memory stays bounded however large the file is.
+ */
+
+package client;
+
+import canvas.Tile;
+import canvas.Utils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+public class CanvasOpener {
+
+    // Receives the opened canvas band by band
+    public interface Bands {
+        // Called once with the size of the canvas on the board
+        void begin(int width, int height) throws IOException;
+
+        // A band of rows, with its place on the board
+        void band(Tile tile, BufferedImage image) throws IOException;
+    }
+
+    // Decode a file and hand it over in bands, returns false if it is not an image
+    public static boolean open(File file, Bands bands) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            return open(in, bands);
+        }
+    }
+
+    // Decode an encoded image, such as a recorded one, and hand it over in bands
+    public static boolean open(InputStream source, Bands bands) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            return open(in, bands);
+        }
+    }
+
+    private static boolean open(ImageInputStream in, Bands bands) throws IOException {
+        if (in == null) {
+            return false;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            return false;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            // Whole rows and columns are skipped while decoding, leaving two to four times the fitted size to scale from
+            double ratio = Math.max((double) width / Utils.canvasWidth, (double) height / Utils.canvasHeight);
+            int step = Math.max(1, (int) (ratio / 2));
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            BufferedImage decoded = reader.read(0, param);
+            send(decoded, bands);
+            return true;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    // Scale the decoded image to fit the board, never up, and hand it over band by band
+    private static void send(BufferedImage decoded, Bands bands) throws IOException {
+        double scale = Math.min(1, Math.min((double) Utils.canvasWidth / decoded.getWidth(),
+                (double) Utils.canvasHeight / decoded.getHeight()));
+        int width = Math.max(1, (int) Math.round(decoded.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(decoded.getHeight() * scale));
+        bands.begin(width, height);
+        // Source rows per board row
+        double sy = (double) decoded.getHeight() / height;
+        for (int y = 0; y < height; y += Tile.size) {
+            int rows = Math.min(Tile.size, height - y);
+            BufferedImage band = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = band.createGraphics();
+            g.setPaint(Color.white);
+            g.fillRect(0, 0, width, rows);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            // Only the source rows of this band are scaled into it, with a row either side for the interpolation at its edges
+            int from = Math.max(0, (int) Math.floor(y * sy) - 1);
+            int to = Math.min(decoded.getHeight(), (int) Math.ceil((y + rows) * sy) + 1);
+            AffineTransform fit = AffineTransform.getScaleInstance((double) width / decoded.getWidth(), 1 / sy);
+            fit.translate(0, from - y * sy);
+            g.drawImage(decoded.getSubimage(0, from, decoded.getWidth(), to - from), fit, null);
+            g.dispose();
+            Rectangle area = new Rectangle(0, y, width, rows);
+            bands.band(Tile.encode(band, area, 0, width, rows), band);
+        }
+    }
+
+}
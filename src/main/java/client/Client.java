@@ -7,25 +7,35 @@
 
 package client;
 
+import canvas.BoardEngine;
 import canvas.Canvas;
+import canvas.Chunk;
+import canvas.ChunkedInput;
 import canvas.ICanvasMsg;
+import canvas.Tile;
+import canvas.Trace;
 import canvas.Utils;
+import metrics.ClientMetrics;
+import server.AdmissionQueue;
 import server.IBoardMgr;
+import server.Sessions;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static javax.swing.GroupLayout.Alignment.*;
 
@@ -34,18 +44,34 @@ public class Client extends UnicastRemoteObject implements IClient {
     private static final long serialVersionUID = 1L;
     private String username;
     private boolean isManager = false;
-    private boolean hasAccess;
+    private volatile boolean hasAccess;
+    private final CountDownLatch accessDecided = new CountDownLatch(1);
     private Canvas canvas;
     private final IBoardMgr server;
 
-    // Use ConcurrentHaspMap to sync drawings
-    private final ConcurrentHashMap<String, Point> points = new ConcurrentHashMap<>();
+    // Rendering metrics, published over JMX
+    private final ClientMetrics metrics = new ClientMetrics();
+
+    // Board state and drawing events, shown by the canvas
+    private final BoardEngine engine = new BoardEngine();
+
+    // Applies the server's updates in order, asking again for any it missed
+    private final Sequencer sequencer;
+    // Loads the board progressively on joining and after the manager opens a canvas
+    private final BoardLoader loader;
+
+    // Interval of checking in with the server, configurable with -Dwhiteboard.session.heartbeatMillis
+    public static final long heartbeatMillis = Long.getLong("whiteboard.session.heartbeatMillis", 1000L);
+    // Token to resume the session with after a lost connection
+    private volatile String sessionToken;
+    // Set once the client is told its session has ended, by forceQuit or a heartbeat, whichever comes first
+    private final AtomicBoolean quitting = new AtomicBoolean();
 
     // Save canvas
     private String canvasPath;
 
-    // UI window
-    private final JFrame window = new JFrame("White Board");
+    // UI window, created with the UI so the client can also run headless
+    private JFrame window;
 
     // Color buttons
     private JButton blackBt, whiteBt, grayBt, silverBt, maroonBt, redBt, purpleBt, fuchsiaBt;
@@ -66,6 +92,10 @@ public class Client extends UnicastRemoteObject implements IClient {
     private final JList<String> clientJList = new JList<>(this.clientList);
     private final JScrollPane clientWindow = new JScrollPane(clientJList);
 
+    // Join requests waiting for the manager
+    private final DefaultListModel<String> joinRequests = new DefaultListModel<>();
+    private JDialog joinDialog;
+
     // Chat window
     private final DefaultListModel<String> chatHistory = new DefaultListModel<>();
     private JTextField chatMsg;
@@ -76,6 +106,8 @@ public class Client extends UnicastRemoteObject implements IClient {
         this.server = server;
         this.username = username;
         this.hasAccess = true;
+        this.sequencer = new Sequencer((after, until) -> server.resync(this.username, after, until));
+        this.loader = new BoardLoader(server, () -> this.username, this.engine, this.sequencer, this.metrics);
     }
 
     @Override
@@ -94,10 +126,18 @@ public class Client extends UnicastRemoteObject implements IClient {
     }
 
     @Override
-    public boolean needAccess(String username) throws RemoteException {
-        return JOptionPane.showConfirmDialog(window,
-                username + " wants to share your white board.", "New share request",
-                JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE) == JOptionPane.YES_OPTION;
+    public void syncJoinRequests(List<String> usernames) throws RemoteException {
+        // Return straight away, the manager decides in a non-modal dialog
+        SwingUtilities.invokeLater(() -> {
+            this.joinRequests.removeAllElements();
+            for (String name : usernames) {
+                this.joinRequests.addElement(name);
+            }
+            if (this.joinDialog == null) {
+                configJoinDialog();
+            }
+            this.joinDialog.setVisible(!usernames.isEmpty());
+        });
     }
 
     @Override
@@ -108,6 +148,26 @@ public class Client extends UnicastRemoteObject implements IClient {
     @Override
     public void setAccess(boolean access) throws RemoteException {
         this.hasAccess = access;
+        this.accessDecided.countDown();
+    }
+
+    @Override
+    public void setSessionToken(String token) throws RemoteException {
+        this.sessionToken = token;
+    }
+
+    // Wait until the manager has decided on the join request, no longer than the server keeps it waiting.
+    // The manager is in at once
+    public boolean awaitAccess() throws InterruptedException {
+        if (this.isManager) {
+            return true;
+        }
+        if (AdmissionQueue.timeoutMillis <= 0) {
+            this.accessDecided.await();
+        } else if (!this.accessDecided.await(AdmissionQueue.timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        return this.hasAccess;
     }
 
     @Override
@@ -120,79 +180,135 @@ public class Client extends UnicastRemoteObject implements IClient {
     }
 
     @Override
-    public void syncCanvas(ICanvasMsg draw) throws RemoteException {
+    public void syncCanvas(ICanvasMsg draw) throws IOException {
         // No need to update drawer's canvas
         if (draw.getUsername().equals(this.username)) {
             return;
         }
-        Shape shape = null;
+        this.sequencer.receive(draw.getSeq(), draw.getPrevSeq(), () -> render(draw));
+    }
+
+    // Apply a remote drawing to the canvas
+    private void render(ICanvasMsg draw) throws RemoteException {
+        long received = System.nanoTime();
+        this.engine.apply(draw);
         if (draw.getPaintState().equals(Utils.paintStart)) {
-            this.points.put(draw.getUsername(), draw.getPoint());
             return;
         }
-        // Draw from the start point
-        Color orgColor = this.canvas.getColor();
-        Point start = this.points.get(draw.getUsername());
-        this.canvas.getG2().setPaint(draw.getColor());
+        this.metrics.render(System.nanoTime() - received);
+        Trace trace = draw.getTrace();
+        if (trace != null && trace.isSampled()) {
+            long rendered = Trace.now();
+            this.metrics.hop(Trace.dispatchToRender, rendered - trace.getDispatchTime());
+            this.metrics.hop(Trace.endToEnd, rendered - trace.getOriginTime());
+        }
+    }
 
-        switch (draw.getPaintState()) {
-            // Sync mouse motion when free-hand drawing or using eraser
-            case Utils.painting:
-                if (draw.getPaintType().equals(Utils.eraser)) {
-                    canvas.getG2().setStroke(Utils.thickStroke);
-                }
-                shape = canvas.drawLine(start, draw.getPoint());
-                points.put(draw.getUsername(), draw.getPoint());
-                canvas.getG2().draw(shape);
-                canvas.repaint();
-                break;
-            // Sync mouse release
-            case Utils.paintEnd:
-                if (draw.getPaintType().equals(Utils.free) || draw.getPaintType().equals(Utils.line) || draw.getPaintType().equals(Utils.eraser)) {
-                    shape = canvas.drawLine(start, draw.getPoint());
-                } else if (draw.getPaintType().equals(Utils.circle)) {
-                    shape = canvas.drawCircle(start, draw.getPoint());
-                } else if (draw.getPaintType().equals(Utils.triangle)) {
-                    shape = canvas.drawTriangle(start, draw.getPoint());
-                } else if (draw.getPaintType().equals(Utils.rectangle)) {
-                    shape = canvas.drawRectangle(start, draw.getPoint());
-                } else if (draw.getPaintType().equals(Utils.text)) {
-                    canvas.getG2().setFont(Utils.defaultFont);
-                    canvas.getG2().drawString(draw.getText(), draw.getPoint().x, draw.getPoint().y);
-                }
-                // Draw on the canvas if it is not a text input
-                if (!draw.getPaintType().equals(Utils.text)) {
-                    try {
-                        canvas.getG2().draw(shape);
-                    } catch (NullPointerException e) {
-                        System.out.println("Drawing error!");
-                    }
-                }
-                canvas.repaint();
-                points.remove(draw.getUsername());
-                // Restore the original color and stroke
-                canvas.getG2().setPaint(orgColor);
-                canvas.getG2().setStroke(Utils.defaultStroke);
-                break;
+    @Override
+    public void syncPreview(ICanvasMsg preview) throws RemoteException {
+        if (!preview.getUsername().equals(this.username)) {
+            this.engine.preview(preview);
         }
     }
 
     @Override
-    public void cleanCanvas() throws RemoteException {
-        this.canvas.cleanCanvas();
+    public void cleanCanvas(long seq) throws IOException {
+        this.sequencer.reset(seq, this.engine::clean);
+    }
+
+    @Override
+    public void cleanLayer(String username, long seq, long prev) throws IOException {
+        this.sequencer.receive(seq, prev, () -> {
+            this.engine.cleanLayer(username);
+            if (this.engine.isFlattened()) {
+                // Strokes loaded along with the board are in its base, out of the clear's reach
+                this.sequencer.snapshot();
+            }
+        });
+    }
+
+    @Override
+    public void skipTo(long seq) throws IOException {
+        this.sequencer.skipTo(seq);
     }
 
     @Override
-    public byte[] getCurrentCanvas() throws IOException {
-        ByteArrayOutputStream image = new ByteArrayOutputStream();
-        ImageIO.write(this.canvas.getCanvasImage(), "png", image);
-        return image.toByteArray();
+    public void overrideCanvas(Chunk canvas, long seq) throws IOException {
+        // Fetched and decoded before taking the sequencer, so tiles and resyncs are not held up by it.
+        // This client's queue on the server waits for the call, so no other update reaches it meanwhile
+        BufferedImage image = ChunkedInput.readImage(this.server::sendCanvasChunk, canvas);
+        this.sequencer.reset(seq, () -> this.engine.override(image));
+    }
+
+    // Check in with the server, and re-attach to the session when the connection has been lost
+    private void watchSession() {
+        while (true) {
+            try {
+                Thread.sleep(heartbeatMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (this.quitting.get()) {
+                return;
+            }
+            int state = sessionState();
+            if (state == Sessions.lost && !resume()) {
+                // Resuming fails too if the manager closed the session meanwhile
+                state = sessionState();
+                if (state != Sessions.ended) {
+                    JOptionPane.showMessageDialog(window, "Connection to the board has been lost",
+                            "Warning", JOptionPane.WARNING_MESSAGE);
+                    System.exit(0);
+                }
+            }
+            if (state == Sessions.ended) {
+                // Closed by the manager, forceQuit may still be on its way
+                sessionEnded();
+                return;
+            }
+        }
+    }
+
+    // State of this client's session on the server, lost if the server cannot be reached
+    private int sessionState() {
+        try {
+            return this.server.heartbeat(this.sessionToken);
+        } catch (RemoteException e) {
+            return Sessions.lost;
+        }
+    }
+
+    // Try to resume the session with growing pauses, returns false once it has expired
+    private boolean resume() {
+        long deadline = System.currentTimeMillis() + Sessions.resumeMillis;
+        long pause = 100;
+        System.out.println("Connection lost, resuming the session...");
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                if (this.server.resume(this.sessionToken, this, this.sequencer.getApplied())) {
+                    System.out.println("Session resumed");
+                    return true;
+                }
+                return false;
+            } catch (RemoteException e) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException ie) {
+                    return false;
+                }
+                pause = Math.min(pause * 2, 2000);
+            }
+        }
+        return false;
     }
 
     @Override
-    public void overrideCanvas(byte[] canvas) throws IOException {
-        BufferedImage image = ImageIO.read(new ByteArrayInputStream(canvas));
-        this.canvas.renderFrame(image);
+    public void previewCanvas(Tile preview, long seq) throws IOException {
+        BufferedImage image = preview.decode();
+        if (image != null) {
+            this.sequencer.reset(seq, () -> this.engine.override(image));
+            this.loader.refine();
+        }
     }
 
     @Override
@@ -204,6 +320,14 @@ public class Client extends UnicastRemoteObject implements IClient {
             return;
         }
         // Manager end the session or the client is kicked out
+        sessionEnded();
+    }
+
+    // Tell the user the manager has ended their session and quit, only once
+    private void sessionEnded() {
+        if (!this.quitting.compareAndSet(false, true)) {
+            return;
+        }
         Thread t = new Thread(() -> {
             JOptionPane.showMessageDialog(window, "Manager has end your session",
                     "Warning", JOptionPane.WARNING_MESSAGE);
@@ -234,8 +358,10 @@ public class Client extends UnicastRemoteObject implements IClient {
 
     @Override
     public void configUI() throws RemoteException {
+        window = new JFrame("White Board");
+
         // Initialise the canvas
-        canvas = new Canvas(server, username, isManager);
+        canvas = new Canvas(server, engine, username, isManager, metrics);
         canvas.setMinimumSize(new Dimension(Utils.canvasWidth, Utils.canvasHeight));
 
         // Configure color buttons
@@ -387,6 +513,8 @@ public class Client extends UnicastRemoteObject implements IClient {
         clientWindow.setBorder(Utils.border);
         // Manager can double-click on usernames to kick out users
         if (isManager) clientJList.addMouseListener(kickListener);
+        // Right-click on usernames to hide, show or clear their layers in layer mode
+        if (engine.isLayered()) clientJList.addMouseListener(layerListener);
         // All clients are forced to quit when the manager leaves
         window.addWindowListener(quitListener);
 
@@ -410,6 +538,13 @@ public class Client extends UnicastRemoteObject implements IClient {
     public void renderUI() throws RemoteException {
         // Configure buttons and windows
         configUI();
+        metrics.setDegraded(engine::isDegraded);
+        metrics.register(username);
+        if (this.sessionToken != null) {
+            Thread t = new Thread(this::watchSession, "session");
+            t.setDaemon(true);
+            t.start();
+        }
         // UI settings
         Container container = this.window.getContentPane();
         GroupLayout layout = new GroupLayout(container);
@@ -530,6 +665,51 @@ public class Client extends UnicastRemoteObject implements IClient {
         window.setVisible(true);
         window.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         window.setMinimumSize(new Dimension(Utils.windowWidth, Utils.windowHeight));
+
+        // Joiners see a preview of the board first and can draw once the tiles in view are in, as after an opened canvas
+        loader.setVisible(canvas::getVisibleRect);
+        loader.setDrawable(d -> SwingUtilities.invokeLater(() -> canvas.setLoaded(d)));
+        if (!isManager && Tile.progressive) {
+            loader.join();
+        }
+    }
+
+    // Dialog for the manager to approve or reject join requests, one or many at a time
+    private void configJoinDialog() {
+        JList<String> requests = new JList<>(this.joinRequests);
+        requests.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        JButton approveBt = new JButton("Approve");
+        JButton rejectBt = new JButton("Reject");
+        JButton approveAllBt = new JButton("Approve all");
+        JButton rejectAllBt = new JButton("Reject all");
+        approveBt.addActionListener(e -> decideJoinRequests(requests.getSelectedValuesList(), true));
+        rejectBt.addActionListener(e -> decideJoinRequests(requests.getSelectedValuesList(), false));
+        approveAllBt.addActionListener(e -> decideJoinRequests(Collections.list(joinRequests.elements()), true));
+        rejectAllBt.addActionListener(e -> decideJoinRequests(Collections.list(joinRequests.elements()), false));
+
+        JPanel buttons = new JPanel();
+        buttons.add(approveBt);
+        buttons.add(rejectBt);
+        buttons.add(approveAllBt);
+        buttons.add(rejectAllBt);
+
+        this.joinDialog = new JDialog(this.window, "New share requests", false);
+        this.joinDialog.add(new JLabel("These users want to share your white board."), BorderLayout.NORTH);
+        this.joinDialog.add(new JScrollPane(requests), BorderLayout.CENTER);
+        this.joinDialog.add(buttons, BorderLayout.SOUTH);
+        this.joinDialog.setSize(Utils.clientWindowWidth * 2, Utils.clientWindowHeight);
+        this.joinDialog.setLocationRelativeTo(this.window);
+    }
+
+    private void decideJoinRequests(List<String> usernames, boolean access) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        try {
+            server.decideJoinRequests(this, usernames, access);
+        } catch (RemoteException e) {
+            JOptionPane.showMessageDialog(null, "Unable to connect to the server!");
+        }
     }
 
 /******************************Client manager has access to open, save, saveAs and close*******************************/
@@ -538,11 +718,26 @@ public class Client extends UnicastRemoteObject implements IClient {
         dialog.setVisible(true);
         if (dialog.getFile() != null) {
             this.canvasPath = dialog.getDirectory() + dialog.getFile();
-            BufferedImage image = ImageIO.read(new File(canvasPath));
-            this.canvas.renderFrame(image);
-            ByteArrayOutputStream imageArray = new ByteArrayOutputStream();
-            ImageIO.write(image, "png", imageArray);
-            this.server.sendExistCanvas(imageArray.toByteArray());
+            // Decoded, fitted to the board and sent band by band, the full-size image is never held in memory
+            boolean opened = CanvasOpener.open(new File(canvasPath), new CanvasOpener.Bands() {
+                @Override
+                public void begin(int width, int height) throws IOException {
+                    server.beginOpen(width, height);
+                }
+
+                @Override
+                public void band(Tile tile, BufferedImage image) throws IOException {
+                    engine.drawTile(image, tile.getArea().x, tile.getArea().y);
+                    server.sendOpenBand(tile);
+                }
+            });
+            if (opened) {
+                this.server.endOpen();
+            } else {
+                JOptionPane.showMessageDialog(window, "Unable to open " + dialog.getFile() + " as an image!",
+                        "Warning", JOptionPane.WARNING_MESSAGE);
+                this.canvasPath = null;
+            }
         }
     }
 
@@ -744,6 +939,39 @@ public class Client extends UnicastRemoteObject implements IClient {
         }
     };
 
+    // Monitor layer actions - Right click to hide, show or clear a user's layer
+    private final MouseListener layerListener = new MouseAdapter() {
+        @Override
+        public void mousePressed(MouseEvent event) {
+            if (!SwingUtilities.isRightMouseButton(event)) {
+                return;
+            }
+            int index = clientJList.locationToIndex(event.getPoint());
+            if (index <= 0) {
+                return;
+            }
+            String layer = clientList.getElementAt(index);
+            boolean visible = engine.isLayerVisible(layer);
+            JPopupMenu menu = new JPopupMenu();
+            JMenuItem toggle = new JMenuItem(visible ? "Hide layer" : "Show layer");
+            toggle.addActionListener(e -> engine.setLayerVisible(layer, !visible));
+            menu.add(toggle);
+            // Users clear their own layer, the manager anyone's
+            if (isManager || layer.equals(username)) {
+                JMenuItem clear = new JMenuItem("Clear layer");
+                clear.addActionListener(e -> {
+                    try {
+                        server.cleanLayer(Client.this, layer);
+                    } catch (RemoteException ex) {
+                        System.out.println("Error with clearing the layer!");
+                    }
+                });
+                menu.add(clear);
+            }
+            menu.show(clientJList, event.getX(), event.getY());
+        }
+    };
+
     // Monitor quit action
     private final WindowListener quitListener = new WindowAdapter() {
         @Override
@@ -4,12 +4,15 @@
 
 package client;
 
+import canvas.Chunk;
 import canvas.ICanvasMsg;
+import canvas.Tile;
 
 import javax.swing.*;
 import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import java.util.Set;
 
 public interface IClient extends Remote {
@@ -23,29 +26,43 @@ public interface IClient extends Remote {
     // Set the client as manager
     void setAsManager() throws RemoteException;
 
-    // Client requires access to the canvas
-    boolean needAccess(String username) throws RemoteException;
+    // Update the join requests waiting for the manager
+    void syncJoinRequests(List<String> usernames) throws RemoteException;
+
+    // Give the client the token to resume its session with after a lost connection
+    void setSessionToken(String token) throws RemoteException;
 
     // Get client's access status
     boolean getAccess() throws RemoteException;
 
-    // Change client's access
+    // Change client's access, a joiner is notified this way once the manager has decided
     void setAccess(boolean access) throws RemoteException;
 
     // Update the client list
     void syncClientList(Set<IClient> clientList) throws RemoteException;
 
-    // Sync new updates on the canvas
-    void syncCanvas(ICanvasMsg draw) throws RemoteException;
+    // Sync new updates on the canvas, in the order of their sequence numbers
+    void syncCanvas(ICanvasMsg draw) throws IOException;
+
+    // Show the latest preview of a shape another user is dragging
+    void syncPreview(ICanvasMsg preview) throws RemoteException;
+
+    // Clean up the canvas, seq is the sequence number of the clean
+    void cleanCanvas(long seq) throws IOException;
+
+    // Clean up one user's layer in layer mode, prev is the sequence number of the update sent before it
+    void cleanLayer(String username, long seq, long prev) throws IOException;
 
-    // Clean up the canvas
-    void cleanCanvas() throws RemoteException;
+    // Nothing more is sent to the client up to seq, the rest of a resent range were its own updates
+    void skipTo(long seq) throws IOException;
 
-    // Get the current canvas layout
-    byte[] getCurrentCanvas() throws IOException;
+    // Override the current canvas with another one, an opened canvas or a snapshot at sequence number seq,
+    // given as the first chunk of its encoding, the client asks the server for the rest
+    void overrideCanvas(Chunk canvas, long seq) throws IOException;
 
-    // Override the current canvas with another one
-    void overrideCanvas(byte[] canvas) throws IOException;
+    // Replace the canvas with a low-resolution preview of an opened canvas at sequence number seq,
+    // the client then loads the full-resolution tiles from the server
+    void previewCanvas(Tile preview, long seq) throws IOException;
 
     // Quit the white board
     void forceQuit() throws IOException;
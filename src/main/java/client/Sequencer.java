@@ -0,0 +1,206 @@
+/**
+ * Class for applying the server's board updates in sequence on a client.
+ * Every update carries its sequence number and the one of the update sent to this client before it.
+ * An update arriving after a gap is held back and only the missing range is asked for again;
+ * the server answers with the updates from its recent window, or a snapshot when they are too old.
+ */
+
+package client;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Sequencer {
+
+    // Updates held back behind a gap after which a snapshot is asked for instead, configurable with -Dwhiteboard.resync.maxHeld
+    public static final int maxHeld = Integer.getInteger("whiteboard.resync.maxHeld", 1000);
+
+    // A board update to apply
+    public interface Update {
+        void apply() throws IOException;
+    }
+
+    // Asks the server to send again the updates after one sequence number up to another, a snapshot if after is negative
+    public interface Resync {
+        void request(long after, long until) throws RemoteException;
+    }
+
+    private static class Held {
+        private final long prev;
+        private final Update update;
+
+        Held(long prev, Update update) {
+            this.prev = prev;
+            this.update = update;
+        }
+    }
+
+    private final Resync resync;
+    // Sequence number of the last update applied, -1 until the first one
+    private long applied = -1;
+    // Highest sequence number a resync has been asked up to
+    private long requested = -1;
+    private boolean snapshotRequested = false;
+    // Updates waiting for a gap to be filled, by sequence number
+    private final TreeMap<Long, Held> held = new TreeMap<>();
+    private final LongAdder gaps = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    public Sequencer(Resync resync) {
+        this.resync = resync;
+    }
+
+    // Apply an update which follows prev, hold it back if something before it is missing, or drop a duplicate.
+    // Updates without a sequence number, such as the pens after a snapshot, are applied straight away
+    public synchronized void receive(long seq, long prev, Update update) throws IOException {
+        if (seq <= 0) {
+            update.apply();
+            return;
+        }
+        if (applied >= 0 && seq <= applied) {
+            duplicates.increment();
+            return;
+        }
+        if (applied < 0 || prev <= applied) {
+            update.apply();
+            applied = seq;
+            drain();
+            notifyAll();
+            return;
+        }
+        held.put(seq, new Held(prev, update));
+        // Missing range is between the closest update known before this one and prev
+        Long before = held.lowerKey(seq);
+        long known = Math.max(applied, before == null ? -1 : before);
+        if (held.size() > maxHeld && !snapshotRequested) {
+            snapshotRequested = true;
+            request(-1, 0);
+        } else if (prev > known && prev > requested) {
+            gaps.increment();
+            request(known, prev);
+            requested = prev;
+        }
+    }
+
+    // Apply an update which replaces the whole board, such as a clean, an opened canvas or a snapshot
+    public synchronized void reset(long seq, Update update) throws IOException {
+        // A snapshot asked for may be of the board as it already is here, and is taken all the same
+        if (seq > 0 && applied >= 0 && (seq < applied || (seq == applied && !snapshotRequested))) {
+            duplicates.increment();
+            return;
+        }
+        update.apply();
+        if (seq > 0) {
+            applied = seq;
+            snapshotRequested = false;
+            drain();
+            notifyAll();
+        }
+    }
+
+    // Apply the whole board as it was once the updates up to seq had been sent to this client, such as a joiner's preview,
+    // unless a later update has been applied already. Updates up to seq still on their way are in it and are dropped
+    public synchronized boolean startAt(long seq, Update update) throws IOException {
+        if (applied > seq) {
+            return false;
+        }
+        update.apply();
+        if (seq > applied) {
+            applied = seq;
+            drain();
+            notifyAll();
+        }
+        return true;
+    }
+
+    // Apply a piece of the board taken once the updates up to seq had been sent to this client, such as a tile.
+    // It is drawn once exactly those updates have been applied, waiting up to waitMillis for them to arrive,
+    // as an update drawn again over a piece which has it already would thicken its antialiased edges.
+    // False if a later update has been applied already, or the updates did not come in time
+    public synchronized boolean applyAt(long seq, Update update, long waitMillis) throws IOException {
+        long deadline = System.nanoTime() + waitMillis * 1000000;
+        long left;
+        while (applied < seq && (left = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (applied != seq) {
+            return false;
+        }
+        update.apply();
+        return true;
+    }
+
+    // Ask for a snapshot of the whole board, such as when a piece of it could not be loaded
+    public synchronized void snapshot() {
+        if (!snapshotRequested) {
+            snapshotRequested = true;
+            request(-1, 0);
+        }
+    }
+
+    // Nothing more is coming up to seq, the server resent what it had for a gap and the rest were this client's own updates
+    public synchronized void skipTo(long seq) throws IOException {
+        if (seq > applied) {
+            applied = seq;
+            drain();
+            notifyAll();
+        }
+    }
+
+    // Start over, for a client joining the board again
+    public synchronized void forget() {
+        applied = -1;
+        requested = -1;
+        snapshotRequested = false;
+        held.clear();
+    }
+
+    // Sequence number of the last update applied, -1 before the first one
+    public synchronized long getApplied() {
+        return applied;
+    }
+
+    // Gaps for which a resync was asked
+    public long getGaps() {
+        return gaps.sum();
+    }
+
+    // Updates received again after they were applied
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    // Apply the held updates which no longer follow a gap
+    private void drain() throws IOException {
+        while (!held.isEmpty()) {
+            Map.Entry<Long, Held> first = held.firstEntry();
+            if (first.getKey() <= applied) {
+                held.pollFirstEntry();
+            } else if (first.getValue().prev <= applied) {
+                held.pollFirstEntry();
+                first.getValue().update.apply();
+                applied = first.getKey();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void request(long after, long until) {
+        try {
+            resync.request(after, until);
+        } catch (RemoteException e) {
+            System.out.println("Unable to ask the server for missing updates!");
+        }
+    }
+
+}
@@ -42,7 +42,7 @@ public class User {
                 System.out.println("The name has been taken!\nPlease enter a new one.");
                 System.exit(0);
             }
-            IClient client = new Client(server, username);
+            Client client = new Client(server, username);
             try {
                 server.login(client);
             } catch(RemoteException e) {
@@ -50,8 +50,8 @@ public class User {
                 System.exit(0);
             }
 
-            // Judge client's access
-            if (client.getAccess()) {
+            // Wait for the manager to decide, then judge client's access
+            if (client.awaitAccess()) {
                 // Render UI
                 client.renderUI();
             } else {
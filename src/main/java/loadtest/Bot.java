@@ -0,0 +1,407 @@
+/**
+ * Class for a simulated user without any UI.
+ * It implements IClient so the server treats it like a Swing client,
+ * draws and chats on its own thread and measures how long other bots' drawings take to arrive.
+ */
+
+package loadtest;
+
+import canvas.BoardEngine;
+import canvas.CanvasEvent;
+import canvas.CanvasMsg;
+import canvas.Chunk;
+import canvas.ChunkedInput;
+import canvas.ICanvasMsg;
+import canvas.Tile;
+import canvas.Trace;
+import canvas.Utils;
+import client.IClient;
+import client.Sequencer;
+import server.IBoardMgr;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class Bot extends UnicastRemoteObject implements IClient, Runnable {
+
+    private static final long serialVersionUID = 1L;
+    private static final String[] shapes = {Utils.line, Utils.circle, Utils.triangle, Utils.rectangle, Utils.text};
+
+    private String username;
+    private final String name;
+    private final IBoardMgr server;
+    private final LoadStats stats;
+    private final long deadline;
+    private final Random random;
+    private boolean isManager = false;
+    private volatile boolean hasAccess = true;
+    private volatile boolean kicked = false;
+    private CountDownLatch accessDecided;
+    private long eventSeq = 0;
+    private Point pen;
+    // Board the bot renders into when loadtest.render is set
+    private final BoardEngine engine = Workload.render ? new BoardEngine() : null;
+    // Applies the server's updates in order, asking again for any missed
+    private final Sequencer sequencer;
+    // Token to resume the session with
+    private volatile String sessionToken;
+    // Emulated network link to the server, null for a direct connection
+    private final Link link;
+    // The bot as the server sees it, behind the link if there is one
+    private final IClient self;
+    // Join decisions of a manager bot, made off the server's callback thread one at a time
+    private static final ExecutorService deciding = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "join-decisions");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public Bot(IBoardMgr server, String username, LoadStats stats, long deadline) throws RemoteException {
+        this(server, username, stats, deadline, null);
+    }
+
+    public Bot(IBoardMgr server, String username, LoadStats stats, long deadline, Link link) throws RemoteException {
+        this.link = link;
+        this.server = link == null ? server : link.outgoing(IBoardMgr.class, server);
+        if (link == null) {
+            this.self = this;
+        } else {
+            this.self = link.incoming(IClient.class, this);
+            UnicastRemoteObject.exportObject(self, 0);
+        }
+        this.username = username;
+        this.name = username;
+        this.stats = stats;
+        this.deadline = deadline;
+        this.random = new Random(username.hashCode());
+        this.pen = new Point(random.nextInt(Utils.canvasWidth), random.nextInt(Utils.canvasHeight));
+        this.sequencer = new Sequencer((after, until) -> {
+            stats.resyncs.increment();
+            this.server.resync(this.username, after, until);
+        });
+    }
+
+    // Log in and wait to be admitted, returns false if rejected
+    public boolean join() throws RemoteException, InterruptedException {
+        this.accessDecided = new CountDownLatch(1);
+        this.username = name;
+        this.sequencer.forget();
+        long start = System.nanoTime();
+        server.login(self);
+        if (!isManager && !accessDecided.await(5, TimeUnit.MINUTES)) {
+            return false;
+        }
+        stats.joins.increment();
+        stats.joinMillis.record((System.nanoTime() - start) / 1000000);
+        return hasAccess;
+    }
+
+    // Re-attach to the session after a lost connection, returns false if it has expired
+    public boolean resume() throws RemoteException {
+        return sessionToken != null && server.resume(sessionToken, self, sequencer.getApplied());
+    }
+
+    @Override
+    public void run() {
+        long scribbleGap = Workload.scribbleRate > 0 ? 1000000000L / Workload.scribbleRate : Long.MAX_VALUE;
+        long next = System.nanoTime();
+        long nextBurst = next + random.nextInt(Math.max(1, Workload.shapeEverySeconds * 1000)) * 1000000L;
+        int strokePoints = 0;
+        try {
+            while (!kicked && System.currentTimeMillis() < deadline) {
+                long now = System.nanoTime();
+                if (Workload.shapeBurst > 0 && now >= nextBurst) {
+                    burst();
+                    nextBurst = now + Workload.shapeEverySeconds * 1000000000L;
+                }
+                if (Workload.chatPerMinute > 0 && random.nextDouble() < chance(Workload.chatPerMinute, scribbleGap)) {
+                    server.broadcastChat(username + ": load test message " + eventSeq);
+                }
+                if (Workload.churnPerMinute > 0 && !isManager && random.nextDouble() < chance(Workload.churnPerMinute, scribbleGap)) {
+                    server.quitClient(username);
+                    server.syncClientList();
+                    if (!join()) {
+                        return;
+                    }
+                    strokePoints = 0;
+                }
+                if (Workload.scribbleRate > 0) {
+                    // Free-hand stroke: start, points at the set rate, end
+                    if (strokePoints == 0) {
+                        send(Utils.paintStart, Utils.free, pen, "");
+                    }
+                    pen = step(pen);
+                    strokePoints++;
+                    if (strokePoints >= Workload.strokeLength) {
+                        send(Utils.paintEnd, Utils.free, pen, "");
+                        strokePoints = 0;
+                    } else {
+                        send(Utils.painting, Utils.free, pen, "");
+                    }
+                    next += scribbleGap;
+                } else {
+                    next = Math.min(nextBurst, now + 100000000L);
+                }
+                long sleep = next - System.nanoTime();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } else {
+                    // Behind schedule, drop the missed slots rather than bunching them
+                    next = System.nanoTime();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RemoteException e) {
+            stats.errors.increment();
+            System.out.println(username + " lost the server: " + e.getMessage());
+        }
+    }
+
+    // Probability of an event happening per minute within one loop step
+    private static double chance(int perMinute, long gapNanos) {
+        long gap = gapNanos == Long.MAX_VALUE ? 100000000L : gapNanos;
+        return perMinute * gap / 60e9;
+    }
+
+    private void burst() throws RemoteException {
+        for (int i = 0; i < Workload.shapeBurst; i++) {
+            String type = shapes[random.nextInt(shapes.length)];
+            Point start = new Point(random.nextInt(Utils.canvasWidth), random.nextInt(Utils.canvasHeight));
+            Point end = new Point(random.nextInt(Utils.canvasWidth), random.nextInt(Utils.canvasHeight));
+            send(Utils.paintStart, type, start, "");
+            for (int j = 1; j <= Workload.previewsPerShape; j++) {
+                Point p = new Point(start.x + (end.x - start.x) * j / (Workload.previewsPerShape + 1),
+                        start.y + (end.y - start.y) * j / (Workload.previewsPerShape + 1));
+                server.previewMsg(new CanvasEvent(Utils.preview, type, Color.black, p, "Text", username));
+            }
+            send(Utils.paintEnd, type, end, type.equals(Utils.text) ? "load test" : "");
+        }
+    }
+
+    private Point step(Point p) {
+        int x = Math.max(0, Math.min(Utils.canvasWidth - 1, p.x + random.nextInt(11) - 5));
+        int y = Math.max(0, Math.min(Utils.canvasHeight - 1, p.y + random.nextInt(11) - 5));
+        return new Point(x, y);
+    }
+
+    // Clean this bot's own layer
+    public void cleanLayer() throws RemoteException {
+        server.cleanLayer(self, username);
+    }
+
+    // Send a recorded drawing as this bot
+    public void draw(CanvasEvent event) throws RemoteException {
+        send(event.getPaintState(), event.getPaintType(), event.getColor(), event.getPoint(), event.getText(), event.isRough());
+    }
+
+    private void send(String state, String type, Point point, String text) throws RemoteException {
+        // A rendering bot lowers the quality of its segments while its board is busy, like the Swing client
+        boolean rough = engine != null && state.equals(Utils.painting) && engine.busy();
+        send(state, type, Color.black, point, text, rough);
+    }
+
+    private void send(String state, String type, Color color, Point point, String text, boolean rough) throws RemoteException {
+        Trace trace = Trace.origin(++eventSeq);
+        ICanvasMsg msg;
+        if (Workload.byValue) {
+            msg = new CanvasEvent(state, type, color, point, text, username, trace).withRough(rough);
+        } else {
+            msg = new CanvasMsg(state, type, color, point, text, username, trace, rough);
+        }
+        if (link != null && msg instanceof CanvasMsg) {
+            // The server reads the drawing back over the link
+            ICanvasMsg remote = link.incoming(ICanvasMsg.class, msg);
+            UnicastRemoteObject.exportObject(remote, 0);
+            server.broadcastMsg(remote);
+            UnicastRemoteObject.unexportObject(remote, true);
+        } else {
+            server.broadcastMsg(msg);
+        }
+        stats.sent.increment();
+        if (msg instanceof CanvasMsg) {
+            // The server has copied it, free the exported object
+            UnicastRemoteObject.unexportObject((CanvasMsg) msg, true);
+        }
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String s) {
+        this.username = s;
+    }
+
+    @Override
+    public void setAsManager() {
+        this.isManager = true;
+    }
+
+    @Override
+    public void syncJoinRequests(List<String> usernames) {
+        // A bot manager lets every other bot in
+        if (!usernames.isEmpty()) {
+            deciding.execute(() -> {
+                try {
+                    server.decideJoinRequests(self, usernames, true);
+                } catch (RemoteException e) {
+                    stats.errors.increment();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void setSessionToken(String token) {
+        this.sessionToken = token;
+    }
+
+    @Override
+    public boolean getAccess() {
+        return hasAccess;
+    }
+
+    @Override
+    public void setAccess(boolean access) {
+        this.hasAccess = access;
+        this.accessDecided.countDown();
+    }
+
+    @Override
+    public void syncClientList(Set<IClient> clientList) {
+    }
+
+    @Override
+    public void syncCanvas(ICanvasMsg draw) throws IOException {
+        sequencer.receive(draw.getSeq(), draw.getPrevSeq(), () -> render(draw));
+    }
+
+    private void render(ICanvasMsg draw) throws RemoteException {
+        if (engine != null) {
+            long start = System.nanoTime();
+            engine.apply(draw);
+            stats.render.record((System.nanoTime() - start) / 1000);
+        }
+        stats.delivered.increment();
+        Trace trace = draw.getTrace();
+        if (trace != null) {
+            stats.latency.record(Trace.now() - trace.getOriginTime());
+        }
+    }
+
+    @Override
+    public void cleanCanvas(long seq) throws IOException {
+        sequencer.reset(seq, () -> {
+            if (engine != null) {
+                engine.clean();
+            }
+        });
+    }
+
+    @Override
+    public void syncPreview(ICanvasMsg preview) throws RemoteException {
+        if (engine != null) {
+            engine.preview(preview);
+        }
+        stats.previews.increment();
+    }
+
+    @Override
+    public void cleanLayer(String username, long seq, long prev) throws IOException {
+        sequencer.receive(seq, prev, () -> {
+            if (engine != null) {
+                engine.cleanLayer(username);
+                if (engine.isFlattened()) {
+                    sequencer.snapshot();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void skipTo(long seq) throws IOException {
+        sequencer.skipTo(seq);
+    }
+
+    @Override
+    public void overrideCanvas(Chunk canvas, long seq) throws IOException {
+        // Bots without a board still fetch every chunk, so a load test moves as much as real clients would
+        ChunkedInput in = new ChunkedInput(server::sendCanvasChunk, canvas);
+        BufferedImage image = engine != null ? ImageIO.read(in) : null;
+        in.verify();
+        sequencer.reset(seq, () -> {
+            if (image != null) {
+                engine.override(image);
+            }
+            stats.snapshots.increment();
+        });
+    }
+
+    @Override
+    public void previewCanvas(Tile preview, long seq) throws IOException {
+        sequencer.reset(seq, () -> {
+            if (engine != null) {
+                engine.override(preview.decode());
+            }
+            stats.snapshots.increment();
+        });
+    }
+
+    @Override
+    public void forceQuit() {
+        this.kicked = true;
+    }
+
+    @Override
+    public void syncChat(String msg) {
+        stats.chats.increment();
+    }
+
+    @Override
+    public DefaultListModel<String> getChatHistory() {
+        return new DefaultListModel<>();
+    }
+
+    @Override
+    public void syncChatHistory(DefaultListModel<String> chatHistory) {
+    }
+
+    @Override
+    public void configUI() {
+    }
+
+    @Override
+    public void renderUI() {
+    }
+
+    // Leave the board and stop accepting calls
+    public void leave() {
+        try {
+            if (!kicked) {
+                server.quitClient(username);
+            }
+            UnicastRemoteObject.unexportObject(this, true);
+            if (self != this) {
+                UnicastRemoteObject.unexportObject(self, true);
+            }
+        } catch (IOException e) {
+            stats.errors.increment();
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+/**
+ * Class for an emulated network link between one client and the server, for testing WAN behaviour on one machine.
+ * Remote calls are wrapped in a proxy which holds each message back for the link's latency and jitter,
+ * queues it behind earlier messages for the time its size takes at the link's bandwidth,
+ * and now and then adds a retransmission timeout as a lost packet would.
+ * Calls out to the server travel up the link and their results down, calls from the server the other way round.
+ */
+
+package loadtest;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class Link {
+
+    // Links given to the bots in turn, such as 5/80:20:2000:1 for every other bot on a slow line,
+    // each as latencyMs[:jitterMs[:kbps[:lossPercent]]], configurable with -Dloadtest.link
+    public static final List<Link> profiles = parse(System.getProperty("loadtest.link", ""));
+
+    // Payload of one packet, a message is late if any of its packets is lost
+    private static final int packetBytes = 1460;
+    // Smallest retransmission timeout, as on Linux
+    private static final long minTimeoutMillis = 200;
+    // Header of a remote call on top of its arguments
+    private static final int headerBytes = 64;
+
+    // One direction of the link, sending one message at a time at its bandwidth
+    private class Direction {
+        // When the messages already sent will have left, in nanoTime
+        private long free = 0;
+
+        // Time the message arrives at the other end, in nanoTime
+        synchronized long send(long bytes) {
+            long now = System.nanoTime();
+            long start = Math.max(now, free);
+            free = kbps > 0 ? start + bytes * 8 * 1000000L / kbps : start;
+            double delay = latencyMillis + (jitterMillis > 0 ? (random.nextDouble() * 2 - 1) * jitterMillis : 0);
+            long arrival = free + (long) (Math.max(0, delay) * 1000000L);
+            if (loss > 0) {
+                double late = 1 - Math.pow(1 - loss, (bytes + packetBytes - 1) / packetBytes);
+                long timeout = Math.max(minTimeoutMillis, 2 * latencyMillis + 4 * jitterMillis);
+                // Sent again after each timeout, which doubles every time
+                for (int i = 0; i < 6 && random.nextDouble() < late; i++) {
+                    arrival += (timeout << i) * 1000000L;
+                }
+            }
+            return arrival;
+        }
+
+        // Hold the calling thread until a message of that size has come through
+        void transfer(long bytes) throws RemoteException {
+            long wait = send(bytes) - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("Interrupted on the emulated link", e);
+                }
+            }
+        }
+    }
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    // Bandwidth of each direction in kilobits per second, 0 for unlimited
+    private final long kbps;
+    // Probability of losing one packet
+    private final double loss;
+    private final Random random = new Random();
+    private final Direction up = new Direction();
+    private final Direction down = new Direction();
+
+    public Link(long latencyMillis, long jitterMillis, long kbps, double loss) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.kbps = kbps;
+        this.loss = loss;
+    }
+
+    // Links separated by '/', none for an empty setting
+    public static List<Link> parse(String setting) {
+        List<Link> res = new ArrayList<>();
+        for (String profile : setting.trim().split("/")) {
+            if (profile.isEmpty()) {
+                continue;
+            }
+            String[] parts = profile.split(":");
+            try {
+                res.add(new Link(Long.parseLong(parts[0]),
+                        parts.length > 1 ? Long.parseLong(parts[1]) : 0,
+                        parts.length > 2 ? Long.parseLong(parts[2]) : 0,
+                        parts.length > 3 ? Double.parseDouble(parts[3]) / 100 : 0));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid link " + profile
+                        + ", expected latencyMs[:jitterMs[:kbps[:lossPercent]]]");
+            }
+        }
+        return res;
+    }
+
+    // A new link like the n-th of the profiles, taken in turn, or null if there are none
+    public static Link forClient(List<Link> profiles, int n) {
+        if (profiles.isEmpty()) {
+            return null;
+        }
+        Link p = profiles.get(n % profiles.size());
+        return new Link(p.latencyMillis, p.jitterMillis, p.kbps, p.loss);
+    }
+
+    public static String describe(List<Link> profiles) {
+        if (profiles.isEmpty()) {
+            return "no link emulation";
+        }
+        List<String> res = new ArrayList<>();
+        for (Link p : profiles) {
+            res.add(p.toString());
+        }
+        return "links " + String.join(" / ", res);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dms+-%dms %s %.1f%% loss", latencyMillis, jitterMillis,
+                kbps > 0 ? kbps + "kbps" : "unlimited", loss * 100);
+    }
+
+    // The server seen from this end of the link
+    public <T extends Remote> T outgoing(Class<T> type, T server) {
+        return wrap(type, server, up, down);
+    }
+
+    // An object of this end called by the server, such as a client, to be exported in its place
+    public <T extends Remote> T incoming(Class<T> type, T target) {
+        return wrap(type, target, down, up);
+    }
+
+    private <T extends Remote> T wrap(Class<T> type, T target, Direction request, Direction reply) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                // Compared and hashed locally, as stubs are
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Link[" + target + "]";
+                }
+            }
+            request.transfer(headerBytes + size(args));
+            Object res;
+            try {
+                res = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                reply.transfer(headerBytes);
+                throw e.getCause();
+            }
+            reply.transfer(headerBytes + size(res));
+            return res;
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    // Serialized size of a call's arguments or result, with exported objects sent as their stubs
+    private static long size(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        Counter counter = new Counter();
+        try (ObjectOutputStream out = new ObjectOutputStream(counter) {
+            {
+                enableReplaceObject(true);
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) throws IOException {
+                return obj instanceof Remote ? stub((Remote) obj) : obj;
+            }
+        }) {
+            out.writeObject(value);
+        } catch (IOException e) {
+            // Objects which cannot be sent over RMI at all, such as in-process clients in benchmarks
+            return headerBytes;
+        }
+        return counter.count;
+    }
+
+    // Stub of an exported object, the object itself if it is a stub already or not exported
+    private static Object stub(Remote obj) {
+        try {
+            return RemoteObject.toStub(obj);
+        } catch (IOException e) {
+            return obj;
+        }
+    }
+
+    private static class Counter extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Run hundreds of headless bots against a white board server.
+ * The workload is set with loadtest.* system properties, see Workload.
+ * If the board has no manager yet, the first bot becomes the manager and admits the others.
+ */
+
+package loadtest;
+
+import server.IBoardMgr;
+
+import java.rmi.Naming;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+
+        // Default IP address and port for server, number of bots and test length in seconds
+        String serverIP = "localhost";
+        String serverPort = "3200";
+        int users = 100;
+        int seconds = 60;
+
+        if (args.length > 0) {
+            if (args.length != 4) {
+                System.out.println("Invalid arguments");
+                System.out.println("Usage: LoadGenerator <serverIP> <serverPort> <users> <seconds>");
+                System.exit(0);
+            } else {
+                serverIP = args[0];
+                serverPort = args[1];
+                users = Integer.parseInt(args[2]);
+                seconds = Integer.parseInt(args[3]);
+            }
+        }
+
+        String serverAddress = "//" + serverIP + ":" + serverPort + "/Canvas";
+        IBoardMgr server = (IBoardMgr) Naming.lookup(serverAddress);
+        System.out.println("Load test: " + users + " bots for " + seconds + "s, " + Workload.describe() + ", " + Link.describe(Link.profiles));
+
+        LoadStats stats = new LoadStats();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        List<Bot> bots = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> System.out.println(stats.report()), 5, 5, TimeUnit.SECONDS);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            String username = "bot-" + i;
+            if (server.invalidUsername(username)) {
+                System.out.println("The name " + username + " has been taken, skipped");
+                continue;
+            }
+            Bot bot = new Bot(server, username, stats, deadline, Link.forClient(Link.profiles, i));
+            bots.add(bot);
+            Runnable session = () -> {
+                try {
+                    if (bot.join()) {
+                        bot.run();
+                    } else {
+                        System.out.println(username + " was not admitted");
+                    }
+                } catch (Exception e) {
+                    stats.errors.increment();
+                    System.out.println(username + " could not join: " + e.getMessage());
+                }
+            };
+            // The first bot may become the manager, so it joins before the others ask
+            if (i == 0) {
+                if (!bot.join()) {
+                    System.out.println(username + " was not admitted");
+                    continue;
+                }
+                session = bot;
+            }
+            Thread t = new Thread(session, username);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        reporter.shutdownNow();
+        // Give in-flight deliveries a moment before leaving
+        Thread.sleep(1000);
+        for (Bot bot : bots) {
+            bot.leave();
+        }
+        System.out.println(stats.summary(elapsed));
+        System.exit(0);
+    }
+
+}
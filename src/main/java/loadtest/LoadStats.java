@@ -0,0 +1,55 @@
+/**
+ * Class for the counters shared by all bots of a load test.
+ */
+
+package loadtest;
+
+import metrics.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadStats {
+
+    final LongAdder sent = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder snapshots = new LongAdder();
+    final LongAdder chats = new LongAdder();
+    final LongAdder previews = new LongAdder();
+    final LongAdder joins = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    // Gaps in the received updates for which the server was asked again
+    final LongAdder resyncs = new LongAdder();
+    // Drawer's input to this bot receiving the event, in microseconds
+    final Histogram latency = new Histogram();
+    // Time for a bot to apply a received drawing to its board, in microseconds
+    final Histogram render = new Histogram();
+    // Login to being admitted, in milliseconds
+    final Histogram joinMillis = new Histogram();
+
+    private long lastSent = 0;
+    private long lastDelivered = 0;
+    private long lastTime = System.nanoTime();
+
+    // Rates since the previous report
+    public synchronized String report() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTime) / 1e9;
+        long s = sent.sum(), d = delivered.sum();
+        String res = String.format("sent %.0f ev/s, delivered %.0f ev/s, latency us [%s], snapshots %d, resyncs %d, chats %d, joins %d, errors %d",
+                (s - lastSent) / seconds, (d - lastDelivered) / seconds, latency.summary(),
+                snapshots.sum(), resyncs.sum(), chats.sum(), joins.sum(), errors.sum());
+        lastSent = s;
+        lastDelivered = d;
+        lastTime = now;
+        return res;
+    }
+
+    public String summary(double seconds) {
+        return String.format("Total: sent %d events (%.0f ev/s), delivered %d (%.0f ev/s)%n"
+                        + "Delivery latency us: %s%nRender us: %s%nJoin ms: %s%nSnapshots %d, resyncs %d, chats %d, previews %d, joins %d, errors %d",
+                sent.sum(), sent.sum() / seconds, delivered.sum(), delivered.sum() / seconds,
+                latency.summary(), render.summary(), joinMillis.summary(), snapshots.sum(), resyncs.sum(), chats.sum(), previews.sum(),
+                joins.sum(), errors.sum());
+    }
+
+}
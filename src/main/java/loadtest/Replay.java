@@ -0,0 +1,135 @@
+/**
+ * Replay a recorded session trace against a white board server.
+ * Each recorded user is played by a bot, either at the recorded pace (scaled by a speed factor) or as fast as possible.
+ * Run against a fresh server, so the first replayed user becomes the manager and admits the others.
+ */
+
+package loadtest;
+
+import canvas.Tile;
+import client.CanvasOpener;
+import server.IBoardMgr;
+import server.SessionTrace;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.rmi.Naming;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class Replay {
+
+    private static final String host = "(Host) ";
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length != 4) {
+            System.out.println("Invalid arguments");
+            System.out.println("Usage: Replay <traceFile> <serverIP> <serverPort> <speed|max>");
+            System.exit(0);
+        }
+        File file = new File(args[0]);
+        String serverAddress = "//" + args[1] + ":" + args[2] + "/Canvas";
+        // 0 replays as fast as possible
+        double speed = args[3].equals("max") ? 0 : Double.parseDouble(args[3]);
+        IBoardMgr server = (IBoardMgr) Naming.lookup(serverAddress);
+        System.out.println("Replaying " + file + (speed == 0 ? " at max speed" : " at " + speed + "x")
+                + (Workload.render ? ", rendering" : "") + ", " + Link.describe(Link.profiles));
+
+        LoadStats stats = new LoadStats();
+        Map<String, Bot> bots = new HashMap<>();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> System.out.println(stats.report()), 5, 5, TimeUnit.SECONDS);
+
+        long records = 0;
+        long start = System.nanoTime();
+        try (SessionTrace.Reader reader = new SessionTrace.Reader(file)) {
+            SessionTrace.Record record;
+            while ((record = reader.next()) != null) {
+                if (speed > 0) {
+                    long wait = start + (long) (record.getTime() * 1000 / speed) - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                records++;
+                switch (record.getKind()) {
+                    case SessionTrace.join:
+                        botFor(record.getUsername(), bots, server, stats);
+                        break;
+                    case SessionTrace.leave:
+                        Bot gone = bots.remove(record.getUsername());
+                        if (gone != null) {
+                            gone.leave();
+                        }
+                        break;
+                    case SessionTrace.draw:
+                        botFor(record.getUsername(), bots, server, stats).draw(record.getEvent());
+                        break;
+                    case SessionTrace.chat:
+                        server.broadcastChat(record.getText());
+                        stats.sent.increment();
+                        break;
+                    case SessionTrace.clean:
+                        server.cleanCanvas();
+                        break;
+                    case SessionTrace.cleanLayer:
+                        // Cleaned by its owner, who may always do so
+                        botFor(record.getUsername(), bots, server, stats).cleanLayer();
+                        break;
+                    case SessionTrace.open:
+                        open(server, record.getImage());
+                        break;
+                }
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        reporter.shutdownNow();
+        // Give in-flight deliveries a moment before leaving
+        Thread.sleep(1000);
+        for (Bot bot : bots.values()) {
+            bot.leave();
+        }
+        System.out.printf("Replayed %d records in %.2fs (%.0f records/s)%n", records, elapsed, records / elapsed);
+        System.out.println(stats.summary(elapsed));
+        System.exit(0);
+    }
+
+    // Open a recorded canvas the way the manager's client does, band by band
+    private static void open(IBoardMgr server, byte[] image) throws IOException {
+        boolean opened = CanvasOpener.open(new ByteArrayInputStream(image), new CanvasOpener.Bands() {
+            @Override
+            public void begin(int width, int height) throws IOException {
+                server.beginOpen(width, height);
+            }
+
+            @Override
+            public void band(Tile tile, BufferedImage band) throws IOException {
+                server.sendOpenBand(tile);
+            }
+        });
+        if (opened) {
+            server.endOpen();
+        }
+    }
+
+    // Bot playing a recorded user, joining the board on first use
+    private static Bot botFor(String username, Map<String, Bot> bots, IBoardMgr server, LoadStats stats) throws Exception {
+        Bot bot = bots.get(username);
+        if (bot == null) {
+            String name = username.startsWith(host) ? username.substring(host.length()) : username;
+            bot = new Bot(server, name, stats, Long.MAX_VALUE, Link.forClient(Link.profiles, bots.size()));
+            if (!bot.join()) {
+                System.out.println(name + " was not admitted");
+            }
+            bots.put(username, bot);
+        }
+        return bot;
+    }
+
+}
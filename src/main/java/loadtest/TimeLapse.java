@@ -0,0 +1,70 @@
+/**
+ * Render a time-lapse of a board's history, one PNG frame per evenly spaced point in time.
+ * Frames are asked for from several threads, and the server renders each one from its nearest keyframe,
+ * so a long session is rendered in about the time of its last few operations per frame, spread over the cores.
+ */
+
+package loadtest;
+
+import canvas.ChunkedInput;
+import server.IBoardMgr;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.rmi.Naming;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TimeLapse {
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length != 4 && args.length != 5) {
+            System.out.println("Invalid arguments");
+            System.out.println("Usage: TimeLapse <serverIP> <serverPort> <outDir> <frames> [threads]");
+            System.exit(0);
+        }
+        String serverAddress = "//" + args[0] + ":" + args[1] + "/Canvas";
+        File dir = new File(args[2]);
+        int frames = Math.max(1, Integer.parseInt(args[3]));
+        int threads = args.length == 5 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        IBoardMgr server = (IBoardMgr) Naming.lookup(serverAddress);
+
+        long[] span = server.getHistorySpan();
+        if (span.length == 0) {
+            System.out.println("Nothing has been drawn on the board yet");
+            System.exit(0);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("Unable to create " + dir);
+            System.exit(1);
+        }
+        System.out.println("Rendering " + frames + " frames of " + (span[1] - span[0]) / 1000.0 + "s with " + threads + " threads");
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<?>> done = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            int frame = i;
+            // The last frame is the board after the last operation
+            long time = frames == 1 ? span[1] : span[0] + (span[1] - span[0]) * i / (frames - 1);
+            done.add(pool.submit(() -> {
+                BufferedImage image = ChunkedInput.readImage(server::sendCanvasChunk, server.sendBoardAt(time));
+                ImageIO.write(image, "png", new File(dir, String.format("frame-%04d.png", frame)));
+                return null;
+            }));
+        }
+        for (Future<?> f : done) {
+            f.get();
+        }
+        pool.shutdown();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Rendered %d frames to %s in %.2fs (%.1f frames/s)%n", frames, dir, elapsed, frames / elapsed);
+        System.exit(0);
+    }
+
+}
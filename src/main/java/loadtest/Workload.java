@@ -0,0 +1,34 @@
+/**
+ * Settings of the synthetic workload, read from system properties.
+ */
+
+package loadtest;
+
+public class Workload {
+
+    // Free-hand points drawn per second by each bot, 0 disables scribbling
+    public static final int scribbleRate = Integer.getInteger("loadtest.scribbleRate", 30);
+    // Points in one free-hand stroke
+    public static final int strokeLength = Integer.getInteger("loadtest.strokeLength", 60);
+    // Shapes drawn at once in a burst, 0 disables bursts
+    public static final int shapeBurst = Integer.getInteger("loadtest.shapeBurst", 0);
+    // Previews sent while dragging each shape of a burst, most are dropped by the server's rate cap
+    public static final int previewsPerShape = Integer.getInteger("loadtest.previewsPerShape", 0);
+    // Seconds between two bursts of one bot
+    public static final int shapeEverySeconds = Integer.getInteger("loadtest.shapeEverySeconds", 10);
+    // Chat messages sent per minute by each bot
+    public static final int chatPerMinute = Integer.getInteger("loadtest.chatPerMinute", 0);
+    // Times per minute each bot leaves and joins again
+    public static final int churnPerMinute = Integer.getInteger("loadtest.churnPerMinute", 0);
+    // Send drawings as by-value CanvasEvents instead of exported CanvasMsgs like the Swing client
+    public static final boolean byValue = Boolean.getBoolean("loadtest.byValue");
+    // Apply received drawings to a headless board like a real client would
+    public static final boolean render = Boolean.getBoolean("loadtest.render");
+
+    public static String describe() {
+        return String.format("scribble %d pts/s (strokes of %d), shape bursts of %d every %ds, chat %d/min, churn %d/min, %s%s",
+                scribbleRate, strokeLength, shapeBurst, shapeEverySeconds, chatPerMinute, churnPerMinute,
+                byValue ? "by-value events" : "remote CanvasMsg events", render ? ", rendering" : "");
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Class for collecting the client's rendering metrics and publishing them over JMX.
+ */
+
+package metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+public class ClientMetrics implements ClientMetricsMXBean {
+
+    private final Rate repaints = new Rate();
+    private final Rate events = new Rate();
+    private final Histogram render = new Histogram();
+    private final Map<String, Histogram> hops = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> loads = new ConcurrentHashMap<>();
+    private BooleanSupplier degraded = () -> false;
+
+    // Publish the metrics under whiteboard:type=Client,name=<username>
+    public void register(String username) {
+        try {
+            ObjectName objectName = new ObjectName("whiteboard:type=Client,name=" + ObjectName.quote(username));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            System.out.println("Unable to register client metrics!");
+        }
+    }
+
+    public void setDegraded(BooleanSupplier degraded) {
+        this.degraded = degraded;
+    }
+
+    public void repaint() {
+        repaints.mark();
+    }
+
+    public void render(long nanos) {
+        events.mark();
+        render.record(nanos / 1000);
+    }
+
+    // Latency of a sampled drawing event over one hop
+    public void hop(String hop, long micros) {
+        hops.computeIfAbsent(hop, h -> new Histogram()).record(micros);
+    }
+
+    // Time for a progressive load of the board to reach a stage (preview shown or complete)
+    public void load(String stage, long nanos) {
+        loads.computeIfAbsent(stage, h -> new Histogram()).record(nanos / 1000000);
+    }
+
+    @Override
+    public double getRepaintsPerSecond() {
+        return repaints.perSecond();
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        return events.perSecond();
+    }
+
+    @Override
+    public Histogram.Summary getRenderMicros() {
+        return render.summary();
+    }
+
+    @Override
+    public boolean isRenderDegraded() {
+        return degraded.getAsBoolean();
+    }
+
+    @Override
+    public Map<String, Histogram.Summary> getTraceMicros() {
+        Map<String, Histogram.Summary> res = new TreeMap<>();
+        hops.forEach((hop, histogram) -> res.put(hop, histogram.summary()));
+        return res;
+    }
+
+    @Override
+    public Map<String, Histogram.Summary> getLoadMillis() {
+        Map<String, Histogram.Summary> res = new TreeMap<>();
+        loads.forEach((stage, histogram) -> res.put(stage, histogram.summary()));
+        return res;
+    }
+
+}
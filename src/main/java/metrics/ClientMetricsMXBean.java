@@ -0,0 +1,30 @@
+/**
+ * Interface for the client metrics shown in JConsole or any JMX client.
+ * Registered as whiteboard:type=Client,name=<username>.
+ */
+
+package metrics;
+
+import java.util.Map;
+
+public interface ClientMetricsMXBean {
+
+    // Canvas repaints per second
+    double getRepaintsPerSecond();
+
+    // Remote drawing events applied per second
+    double getEventsPerSecond();
+
+    // Time to apply a remote drawing event to the canvas, in microseconds
+    Histogram.Summary getRenderMicros();
+
+    // Whether strokes in progress are drawn without antialiasing because the board is busy
+    boolean isRenderDegraded();
+
+    // Latency of sampled drawing events by hop (dispatch to render and end to end), in microseconds
+    Map<String, Histogram.Summary> getTraceMicros();
+
+    // Time for a progressive load of the board to show the preview and to complete, in milliseconds
+    Map<String, Histogram.Summary> getLoadMillis();
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Class for a lock-free histogram with power-of-two buckets.
+ * Recording is a few atomic increments, so it can sit on the drawing path.
+ */
+
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+
+    // Bucket i holds values in [2^(i-1), 2^i), bucket 0 holds 0
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    // Upper bound of the bucket holding the given quantile
+    public long percentile(double quantile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < 64; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public Summary summary() {
+        long n = count.sum();
+        return new Summary(n, n == 0 ? 0 : sum.sum() / n, percentile(0.5), percentile(0.9),
+                percentile(0.99), max.get());
+    }
+
+    // Percentiles at the time of reading, shown as a composite attribute by JMX
+    public static class Summary {
+
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        public Summary(long count, long mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%d p50=%d p90=%d p99=%d max=%d", count, mean, p50, p90, p99, max);
+        }
+
+    }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Class for counting events per second over a short sliding window.
+ */
+
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Rate {
+
+    // Seconds kept, the current partial second is not counted
+    private static final int window = 6;
+
+    private final AtomicLongArray counts = new AtomicLongArray(window);
+    private final AtomicLongArray seconds = new AtomicLongArray(window);
+    private final LongAdder total = new LongAdder();
+
+    public void mark() {
+        long sec = System.currentTimeMillis() / 1000;
+        int i = (int) (sec % window);
+        long s = seconds.get(i);
+        if (s != sec && seconds.compareAndSet(i, s, sec)) {
+            counts.set(i, 0);
+        }
+        counts.incrementAndGet(i);
+        total.increment();
+    }
+
+    // Average over the last complete seconds
+    public double perSecond() {
+        long now = System.currentTimeMillis() / 1000;
+        long sum = 0;
+        for (int i = 0; i < window; i++) {
+            long s = seconds.get(i);
+            if (s < now && s >= now - (window - 1)) {
+                sum += counts.get(i);
+            }
+        }
+        return (double) sum / (window - 1);
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+}
@@ -0,0 +1,288 @@
+/**
+ * Class for collecting the server's hot path metrics and publishing them over JMX.
+ */
+
+package metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    private final Histogram broadcast = new Histogram();
+    private final Histogram delivery = new Histogram();
+    private final Histogram control = new Histogram();
+    private final Rate events = new Rate();
+    private final Map<String, Rate> userEvents = new ConcurrentHashMap<>();
+    private final Histogram encode = new Histogram();
+    private final Histogram snapshotBytes = new Histogram();
+    private final Histogram join = new Histogram();
+    private Supplier<Map<String, Integer>> queueDepths = Collections::emptyMap;
+    private DoubleSupplier hitRate = () -> 0;
+    private final Map<String, Histogram> hops = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> fanOuts = new ConcurrentHashMap<>();
+    private final LongAdder fanOutTimeouts = new LongAdder();
+    private final Histogram resume = new Histogram();
+    private final Histogram resumeUpdates = new Histogram();
+    private final LongAdder resyncs = new LongAdder();
+    private final LongAdder resyncUpdates = new LongAdder();
+    private final LongAdder resyncSnapshots = new LongAdder();
+    private final Histogram hibernate = new Histogram();
+    private final Histogram hibernatedBytes = new Histogram();
+    private final Histogram restore = new Histogram();
+    private final LongAdder restoreFailures = new LongAdder();
+    private final Histogram seek = new Histogram();
+    private final Histogram seekReplayed = new Histogram();
+    private final Rate previews = new Rate();
+    private final Rate previewsDropped = new Rate();
+
+    // Publish the metrics under whiteboard:type=Server,name=<name>
+    public void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("whiteboard:type=Server,name=" + ObjectName.quote(name));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            System.out.println("Unable to register server metrics!");
+        }
+    }
+
+    public void setQueueDepths(Supplier<Map<String, Integer>> queueDepths) {
+        this.queueDepths = queueDepths;
+    }
+
+    public void setHitRate(DoubleSupplier hitRate) {
+        this.hitRate = hitRate;
+    }
+
+    public void broadcast(long nanos) {
+        broadcast.record(nanos / 1000);
+    }
+
+    public void delivery(long nanos) {
+        delivery.record(nanos / 1000);
+    }
+
+    // Time from queuing a control notification to delivering it
+    public void control(long nanos) {
+        control.record(nanos / 1000);
+    }
+
+    public void event(String username) {
+        events.mark();
+        userEvents.computeIfAbsent(username, u -> new Rate()).mark();
+    }
+
+    public void encode(long nanos, int bytes) {
+        encode.record(nanos / 1000);
+        snapshotBytes.record(bytes);
+    }
+
+    public void join(long nanos) {
+        join.record(nanos / 1000000);
+    }
+
+    // Forget a user who has left
+    public void remove(String username) {
+        userEvents.remove(username);
+    }
+
+    // Latency of a sampled drawing event over one hop
+    public void hop(String hop, long micros) {
+        hops.computeIfAbsent(hop, h -> new Histogram()).record(micros);
+    }
+
+    // A client's request for missed updates, answered with some of the recent ones or a snapshot
+    public void resync(int updates, boolean snapshot) {
+        resyncs.increment();
+        resyncUpdates.add(updates);
+        if (snapshot) {
+            resyncSnapshots.increment();
+        }
+    }
+
+    // A client re-attached to its session, with the updates it was sent again
+    public void resume(long nanos, int updates) {
+        resume.record(nanos / 1000);
+        resumeUpdates.record(updates);
+    }
+
+    // An idle board written to disk, with the size of its file
+    public void hibernate(long nanos, long bytes) {
+        hibernate.record(nanos / 1000);
+        hibernatedBytes.record(bytes);
+    }
+
+    // A hibernated board read back on its next use
+    public void restore(long nanos) {
+        restore.record(nanos / 1000);
+    }
+
+    // A hibernated board which could not be read back, failing the operation which needed it
+    public void restoreFailed() {
+        restoreFailures.increment();
+    }
+
+    // The board rendered as it was at a point of its history, with the operations drawn after the keyframe
+    public void seek(long nanos, int replayed) {
+        seek.record(nanos / 1000);
+        seekReplayed.record(replayed);
+    }
+
+    // A preview of a shape being dragged, forwarded or dropped
+    public void preview(boolean forwarded) {
+        (forwarded ? previews : previewsDropped).mark();
+    }
+
+    // Time for a control operation to reach every client, and calls cut off by its deadline
+    public void fanOut(String operation, long nanos, int timedOut) {
+        fanOuts.computeIfAbsent(operation, o -> new Histogram()).record(nanos / 1000);
+        fanOutTimeouts.add(timedOut);
+    }
+
+    @Override
+    public Histogram.Summary getBroadcastMicros() {
+        return broadcast.summary();
+    }
+
+    @Override
+    public Histogram.Summary getDeliveryMicros() {
+        return delivery.summary();
+    }
+
+    @Override
+    public Histogram.Summary getControlMicros() {
+        return control.summary();
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        return events.perSecond();
+    }
+
+    @Override
+    public Map<String, Double> getEventsPerSecondByUser() {
+        Map<String, Double> res = new TreeMap<>();
+        userEvents.forEach((user, rate) -> res.put(user, rate.perSecond()));
+        return res;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        return new TreeMap<>(queueDepths.get());
+    }
+
+    @Override
+    public Histogram.Summary getSnapshotEncodeMicros() {
+        return encode.summary();
+    }
+
+    @Override
+    public Histogram.Summary getSnapshotBytes() {
+        return snapshotBytes.summary();
+    }
+
+    @Override
+    public double getSnapshotHitRate() {
+        return hitRate.getAsDouble();
+    }
+
+    @Override
+    public Histogram.Summary getJoinMillis() {
+        return join.summary();
+    }
+
+    @Override
+    public Map<String, Histogram.Summary> getTraceMicros() {
+        Map<String, Histogram.Summary> res = new TreeMap<>();
+        hops.forEach((hop, histogram) -> res.put(hop, histogram.summary()));
+        return res;
+    }
+
+    @Override
+    public Map<String, Histogram.Summary> getFanOutMicros() {
+        Map<String, Histogram.Summary> res = new TreeMap<>();
+        fanOuts.forEach((operation, histogram) -> res.put(operation, histogram.summary()));
+        return res;
+    }
+
+    @Override
+    public long getFanOutTimeouts() {
+        return fanOutTimeouts.sum();
+    }
+
+    @Override
+    public double getPreviewsPerSecond() {
+        return previews.perSecond();
+    }
+
+    @Override
+    public double getPreviewsDroppedPerSecond() {
+        return previewsDropped.perSecond();
+    }
+
+    @Override
+    public long getResyncs() {
+        return resyncs.sum();
+    }
+
+    @Override
+    public long getResyncUpdates() {
+        return resyncUpdates.sum();
+    }
+
+    @Override
+    public long getResyncSnapshots() {
+        return resyncSnapshots.sum();
+    }
+
+    @Override
+    public Histogram.Summary getResumeMicros() {
+        return resume.summary();
+    }
+
+    @Override
+    public Histogram.Summary getResumeUpdates() {
+        return resumeUpdates.summary();
+    }
+
+    @Override
+    public Histogram.Summary getHibernateMicros() {
+        return hibernate.summary();
+    }
+
+    @Override
+    public Histogram.Summary getHibernatedBytes() {
+        return hibernatedBytes.summary();
+    }
+
+    @Override
+    public Histogram.Summary getRestoreMicros() {
+        return restore.summary();
+    }
+
+    @Override
+    public long getRestoreFailures() {
+        return restoreFailures.sum();
+    }
+
+    @Override
+    public Histogram.Summary getSeekMicros() {
+        return seek.summary();
+    }
+
+    @Override
+    public Histogram.Summary getSeekReplayed() {
+        return seekReplayed.summary();
+    }
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Interface for the server metrics shown in JConsole or any JMX client.
+ * Registered as whiteboard:type=Server.
+ */
+
+package metrics;
+
+import java.util.Map;
+
+public interface ServerMetricsMXBean {
+
+    // Time spent in broadcastMsg before the update is queued for every client, in microseconds
+    Histogram.Summary getBroadcastMicros();
+
+    // Time from queueing an update to the client having received it, in microseconds
+    Histogram.Summary getDeliveryMicros();
+
+    // Time from queuing a control notification, such as a kick, to delivering it, in microseconds
+    Histogram.Summary getControlMicros();
+
+    // Drawing events received per second on the board
+    double getEventsPerSecond();
+
+    // Drawing events received per second from each user
+    Map<String, Double> getEventsPerSecondByUser();
+
+    // Updates waiting to be sent to each client
+    Map<String, Integer> getQueueDepths();
+
+    // Time to encode a board snapshot, in microseconds
+    Histogram.Summary getSnapshotEncodeMicros();
+
+    // Size of encoded board snapshots, in bytes
+    Histogram.Summary getSnapshotBytes();
+
+    // Share of snapshot requests served from the cache
+    double getSnapshotHitRate();
+
+    // Time from login to being admitted, in milliseconds
+    Histogram.Summary getJoinMillis();
+
+    // Latency of sampled drawing events by hop (input to server and server queue), in microseconds
+    Map<String, Histogram.Summary> getTraceMicros();
+
+    // Time for a control operation to reach every client in parallel, by operation, in microseconds
+    Map<String, Histogram.Summary> getFanOutMicros();
+
+    // Control calls cut off by the fan-out deadline
+    long getFanOutTimeouts();
+
+    // Previews of shapes being dragged forwarded per second
+    double getPreviewsPerSecond();
+
+    // Previews dropped per second, after the pen was up or over the rate cap
+    double getPreviewsDroppedPerSecond();
+
+    // Requests from clients for updates they missed
+    long getResyncs();
+
+    // Updates sent again to answer resync requests
+    long getResyncUpdates();
+
+    // Resync requests answered with a snapshot because the missed updates were no longer kept
+    long getResyncSnapshots();
+
+    // Time to re-attach a client to its session after a lost connection, in microseconds
+    Histogram.Summary getResumeMicros();
+
+    // Updates sent again to clients resuming their session
+    Histogram.Summary getResumeUpdates();
+
+    // Time to write an idle board to disk, in microseconds
+    Histogram.Summary getHibernateMicros();
+
+    // Size of hibernated board files, in bytes
+    Histogram.Summary getHibernatedBytes();
+
+    // Time to read a hibernated board back on its next use, in microseconds
+    Histogram.Summary getRestoreMicros();
+
+    // Hibernated boards which could not be read back, each failing the operation which needed the board
+    long getRestoreFailures();
+
+    // Time to render the board as it was at a point of its history, in microseconds
+    Histogram.Summary getSeekMicros();
+
+    // Operations drawn over the nearest keyframe for each seek
+    Histogram.Summary getSeekReplayed();
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Class for join requests waiting for the manager's decision.
+ * Requests are recorded and returned immediately, so no RMI thread waits on the manager's dialog.
+ * Requests matching the auto-approve policy are admitted straight away,
+ * the others are rejected if the manager has not decided within the timeout.
+ */
+
+package server;
+
+import client.IClient;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionQueue {
+
+    // "none" asks the manager, "all" admits everyone, otherwise a comma separated list of usernames to admit
+    public static final String autoApprove = System.getProperty("whiteboard.admission.autoApprove", "none");
+    // Pending requests are rejected after this long, 0 waits forever
+    public static final long timeoutMillis = Long.getLong("whiteboard.admission.timeoutMillis", 60000L);
+
+    // Called once a request has been decided
+    public interface Decision {
+        void decide(IClient client, boolean access, long requested);
+    }
+
+    private static class Request {
+        private final IClient client;
+        // System.nanoTime() of the login
+        private final long time;
+        private ScheduledFuture<?> timeout;
+
+        Request(IClient client) {
+            this.client = client;
+            this.time = System.nanoTime();
+        }
+    }
+
+    private final Map<String, Request> pending = new LinkedHashMap<>();
+    private final Set<String> allowed = new HashSet<>();
+    private final Decision decision;
+    // Decisions and notifications run here, off the callers' RMI threads
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "admission");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public AdmissionQueue(Decision decision) {
+        this.decision = decision;
+        if (!autoApprove.equals("none") && !autoApprove.equals("all")) {
+            this.allowed.addAll(Arrays.asList(autoApprove.split(",")));
+        }
+    }
+
+    // Whether the policy admits the user without asking the manager
+    public boolean autoApproves(String username) {
+        return autoApprove.equals("all") || allowed.contains(username);
+    }
+
+    // Record a join request, returns false if the name is already waiting
+    public synchronized boolean add(String username, IClient client) {
+        if (pending.containsKey(username)) {
+            return false;
+        }
+        Request request = new Request(client);
+        if (timeoutMillis > 0) {
+            request.timeout = executor.schedule(() -> expire(username), timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        pending.put(username, request);
+        return true;
+    }
+
+    public synchronized boolean isPending(String username) {
+        return pending.containsKey(username);
+    }
+
+    // Usernames waiting for a decision, oldest first
+    public synchronized List<String> getPending() {
+        return new ArrayList<>(pending.keySet());
+    }
+
+    // Approve or reject some of the pending requests
+    public void decide(List<String> usernames, boolean access) {
+        List<Request> decided = new ArrayList<>();
+        synchronized (this) {
+            for (String name : usernames) {
+                Request request = pending.remove(name);
+                if (request != null) {
+                    if (request.timeout != null) {
+                        request.timeout.cancel(false);
+                    }
+                    decided.add(request);
+                }
+            }
+        }
+        for (Request request : decided) {
+            executor.execute(() -> decision.decide(request.client, access, request.time));
+        }
+    }
+
+    // Approve or reject everyone waiting
+    public void decideAll(boolean access) {
+        decide(getPending(), access);
+    }
+
+    // Run a task on the admission thread
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    private void expire(String username) {
+        Request request;
+        synchronized (this) {
+            request = pending.remove(username);
+        }
+        if (request != null) {
+            System.out.println("Join request of " + username + " timed out after "
+                    + (System.nanoTime() - request.time) / 1000000 + "ms");
+            decision.decide(request.client, false, request.time);
+        }
+    }
+
+}
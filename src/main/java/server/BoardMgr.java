@@ -7,13 +7,32 @@ package server;
 
 import client.IClient;
 import client.ClientMgr;
+import canvas.CanvasEvent;
+import canvas.Chunk;
 import canvas.ICanvasMsg;
+import canvas.PreviewSender;
+import canvas.Tile;
+import canvas.Trace;
+import canvas.Utils;
+import metrics.ServerMetrics;
 
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.rmi.AccessException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
 
 public class BoardMgr extends UnicastRemoteObject implements IBoardMgr, Serializable {
 
@@ -21,18 +40,150 @@ public class BoardMgr extends UnicastRemoteObject implements IBoardMgr, Serializ
 
     private IClient clientManager;
 
+    // Hot path metrics, published over JMX
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // Server's own copy of the board
+    private final BoardState board = new BoardState(metrics);
+    // Keyframes of the board's history, for showing the board as it was
+    private final Timeline timeline = new Timeline(board, metrics);
+
+    // Outgoing board updates of every client
+    private final Map<IClient, ClientQueue> queues = new ConcurrentHashMap<>();
+
+    // Control operations sent to every client in parallel
+    private final FanOut fanOut = new FanOut(metrics);
+    // Latest updates, resent to clients which missed some
+    private final RecentUpdates recent = new RecentUpdates();
+    // Tokens of admitted clients, kept for a while after a connection is lost
+    private final Sessions sessions = new Sessions();
+    // Canvas the manager is streaming in, at most the board's size
+    private BufferedImage opening;
+
+    // Time of the last preview forwarded for each user, in System.nanoTime()
+    private final Map<String, Long> previewTimes = new ConcurrentHashMap<>();
+
+    // Join requests waiting for the manager
+    private final AdmissionQueue admissions = new AdmissionQueue(this::admit);
+
+    // Session trace written when -Dwhiteboard.record=<file> is set
+    private SessionTrace.Recorder recorder;
+
+    private interface Recording {
+        void write(SessionTrace.Recorder recorder) throws IOException;
+    }
+
     public BoardMgr() throws RemoteException {
         manager = new ClientMgr();
+        metrics.setQueueDepths(() -> {
+            Map<String, Integer> depths = new HashMap<>();
+            queues.values().forEach(q -> depths.put(q.getUsername(), q.size()));
+            return depths;
+        });
+        metrics.setHitRate(board.getSnapshots()::getHitRate);
+        metrics.register("Canvas");
+        Hibernation.shared().host(board, () -> !queues.isEmpty());
+
+        String trace = System.getProperty("whiteboard.record");
+        if (trace != null) {
+            try {
+                recorder = new SessionTrace.Recorder(new File(trace));
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> record(SessionTrace.Recorder::close)));
+                System.out.println("Recording the session to " + trace);
+            } catch (IOException e) {
+                System.out.println("Unable to record the session to " + trace + "!");
+            }
+        }
+    }
+
+    // Append to the session trace if it is being recorded
+    private void record(Recording recording) {
+        if (this.recorder == null) {
+            return;
+        }
+        try {
+            recording.write(this.recorder);
+        } catch (IOException e) {
+            System.out.println("Unable to record the session!");
+        }
+    }
+
+    // Add a client, give it a session token and start streaming board updates to it
+    private void addClient(IClient client) throws RemoteException {
+        String username = client.getUsername();
+        client.setSessionToken(this.sessions.open(username, client == this.clientManager, client));
+        // Registered with the board locked, so that every update after the one it starts from is offered to it
+        synchronized (this.board) {
+            this.queues.put(client, new ClientQueue(client, username, board, metrics, () -> lose(client)));
+        }
+        this.manager.addClient(client);
+        record(r -> r.join(username));
+    }
+
+    // Take a client off the board when its connection is lost, keeping its session to resume
+    private void lose(IClient client) {
+        Sessions.Session session = this.sessions.detach(client);
+        if (session == null || !this.queues.containsKey(client)) {
+            return;
+        }
+        delClient(client);
+        System.out.println(session.getUsername() + " has lost connection, session kept for "
+                + Sessions.resumeMillis / 1000 + "s");
+        try {
+            syncClientList();
+        } catch (RemoteException e) {
+            System.out.println("Unable to sync client list!");
+        }
+    }
+
+    // Delete a client and stop streaming board updates to it
+    private void delClient(IClient client) {
+        delClient(client, null);
+    }
+
+    // Delete a client, sending it a last control notification ahead of any board updates still queued
+    private void delClient(IClient client, ClientQueue.Delivery farewell) {
+        this.manager.delClient(client);
+        ClientQueue queue = this.queues.remove(client);
+        if (queue != null) {
+            if (farewell != null) {
+                queue.closeAfter(farewell);
+            } else {
+                queue.close();
+            }
+            this.metrics.remove(queue.getUsername());
+            this.previewTimes.remove(queue.getUsername());
+            record(r -> r.leave(queue.getUsername()));
+        }
+    }
+
+    // Queue a board update for every client except the one who made it, and keep it for resync
+    private void queueUpdate(long seq, String from, ClientQueue.Update delivery) {
+        this.recent.add(seq, from, delivery);
+        for (ClientQueue q : this.queues.values()) {
+            if (!q.getUsername().equals(from)) {
+                q.offer(seq, delivery);
+            }
+        }
+    }
+
+    // Queue an update replacing the whole board for every client, ahead of the updates it wipes
+    private void queueReset(long seq, ClientQueue.Delivery delivery) {
+        this.recent.add(seq, null, (c, prev) -> delivery.deliver(c));
+        for (ClientQueue q : this.queues.values()) {
+            q.offerReset(seq, delivery);
+        }
     }
 
     @Override
     public void login(IClient client) throws RemoteException {
-        // The first client is the manager
-        if (this.manager.hasNoClient()) {
+        // The first client is the manager, unless the manager is only reconnecting
+        if (this.manager.hasNoClient() && !this.sessions.isManagerLost()) {
             client.setAsManager();
             client.setUsername("(Host) " + client.getUsername());
+            client.setAccess(true);
             this.clientManager = client;
-            this.manager.addClient(client);
+            addClient(client);
             syncClientList();
             try {
                 syncChatHistory(client);
@@ -43,33 +194,69 @@ public class BoardMgr extends UnicastRemoteObject implements IBoardMgr, Serializ
         }
 
         // Other clients need to be approved by the manager to join in
-        boolean access = true;
-        try {
-            access = client.needAccess(client.getUsername());
-        } catch (Exception e) {
-            System.out.println("Unable to get access to the canvas!");
+        long requested = System.nanoTime();
+        String username = client.getUsername();
+        if (this.admissions.autoApproves(username)) {
+            this.admissions.execute(() -> admit(client, true, requested));
+            return;
+        }
+        if (!this.admissions.add(username, client)) {
+            client.setAccess(false);
+            return;
         }
+        // The joiner is notified once the manager has decided
+        this.admissions.execute(this::syncJoinRequests);
+    }
 
-        if (access) {
-            this.manager.addClient(client);
-            syncClientList();
-            try {
+    // Admit or turn away a client whose join request has been decided
+    private void admit(IClient client, boolean access, long requested) {
+        try {
+            if (access) {
+                addClient(client);
+                syncClientList();
                 syncChatHistory(client);
-            } catch (IOException e) {
-                System.out.println("Error syncing chat history!");
             }
-        } else {
-            try {
-                client.setAccess(false);
-            } catch (Exception e) {
-                System.out.println("Unable to set access!");
+            client.setAccess(access);
+            if (access) {
+                this.metrics.join(System.nanoTime() - requested);
             }
+        } catch (IOException e) {
+            System.out.println("Unable to notify the joiner of the decision!");
         }
+        syncJoinRequests();
+    }
+
+    // Show the manager who is waiting to join, ahead of any drawing traffic queued for them
+    private void syncJoinRequests() {
+        ClientQueue queue = this.queues.get(this.clientManager);
+        if (queue != null) {
+            queue.offerControl(c -> c.syncJoinRequests(this.admissions.getPending()));
+            return;
+        }
+        try {
+            this.clientManager.syncJoinRequests(this.admissions.getPending());
+        } catch (RemoteException e) {
+            System.out.println("Unable to sync join requests with the manager!");
+        }
+    }
+
+    @Override
+    public List<String> getJoinRequests() throws RemoteException {
+        return this.admissions.getPending();
+    }
+
+    @Override
+    public void decideJoinRequests(IClient manager, List<String> usernames, boolean access) throws RemoteException {
+        if (manager == null || !manager.equals(this.clientManager)) {
+            System.out.println("Join requests decided by someone other than the manager, refused");
+            throw new AccessException("Only the manager can decide join requests");
+        }
+        this.admissions.decide(usernames, access);
     }
 
     @Override
     public boolean invalidUsername(String username) throws RemoteException {
-        boolean res = false;
+        boolean res = this.admissions.isPending(username) || this.sessions.isReserved(username);
         for (IClient c : getClients()) {
             if (username.equals(c.getUsername()) || c.getUsername().equals("(Host) " + username)) {
                 return true;
@@ -85,16 +272,16 @@ public class BoardMgr extends UnicastRemoteObject implements IBoardMgr, Serializ
 
     @Override
     public void syncClientList() throws RemoteException {
-        for (IClient c: this.manager.getClientList()) {
-            c.syncClientList(this.manager.getClientList());
-        }
+        Set<IClient> clients = new HashSet<>(this.manager.getClientList());
+        this.fanOut.run("sync client list", clients, c -> c.syncClientList(clients));
     }
 
     @Override
     public void quitClient(String username) throws RemoteException {
         for (IClient c: this.manager.getClientList()) {
             if (c.getUsername().equals(username)) {
-                this.manager.delClient(c);
+                this.sessions.close(c);
+                delClient(c);
                 syncClientList();
                 System.out.println(username + " has left");
                 return;
@@ -106,12 +293,18 @@ public class BoardMgr extends UnicastRemoteObject implements IBoardMgr, Serializ
     public void kickClient(String username) throws RemoteException {
         for (IClient c: this.manager.getClientList()) {
             if (c.getUsername().equals(username)) {
-                try {
-                    c.forceQuit();
-                } catch (IOException e) {
-                    System.out.println("Cannot force quit!");
+                this.sessions.close(c);
+                // Told through the control lane, without waiting behind the drawing still queued for them
+                if (this.queues.containsKey(c)) {
+                    delClient(c, IClient::forceQuit);
+                } else {
+                    try {
+                        c.forceQuit();
+                    } catch (IOException e) {
+                        System.out.println("Cannot force quit!");
+                    }
+                    delClient(c);
                 }
-                this.manager.delClient(c);
                 syncClientList();
                 System.out.println(username + " has been kicked out");
                 return;
@@ -121,41 +314,291 @@ public class BoardMgr extends UnicastRemoteObject implements IBoardMgr, Serializ
 
     @Override
     public void removeAllClients() throws IOException {
-        for (IClient c: this.manager.getClientList()) {
-            this.manager.delClient(c);
-            c.forceQuit();
+        this.admissions.decideAll(false);
+        Set<IClient> clients = new HashSet<>(this.manager.getClientList());
+        for (IClient c: clients) {
+            delClient(c);
         }
+        this.fanOut.run("end the session", clients, IClient::forceQuit);
+        this.sessions.clear();
         System.out.println("Manager has end the session");
+        System.out.println(this.board.getHistory().report());
+        System.out.println(this.board.getSnapshots().report());
+        record(SessionTrace.Recorder::flush);
     }
 
     @Override
     public void broadcastMsg(ICanvasMsg draw) throws RemoteException {
-        for (IClient c: this.manager.getClientList()) {
-            c.syncCanvas(draw);
+        long received = System.nanoTime();
+        // Read the drawing once and forward a copy
+        CanvasEvent copy = CanvasEvent.copyOf(draw);
+        if (copy.isSampled()) {
+            long now = Trace.now();
+            this.metrics.hop(Trace.inputToServer, now - copy.getTrace().getOriginTime());
+            copy = copy.withTrace(copy.getTrace().received(now));
         }
+        CanvasEvent event = copy;
+        synchronized (this.board) {
+            long seq = this.board.apply(event);
+            if (event.getPaintState().equals(Utils.paintEnd)) {
+                // The committed shape replaces any preview still waiting
+                this.queues.values().forEach(q -> q.dropPreview(event.getUsername()));
+            }
+            record(r -> r.draw(event));
+            if (event.isSampled()) {
+                // Stamp each client's copy when its queue dispatches it
+                queueUpdate(seq, event.getUsername(), (c, prev) -> {
+                    long now = Trace.now();
+                    this.metrics.hop(Trace.serverQueue, now - event.getTrace().getReceivedTime());
+                    c.syncCanvas(event.withTrace(event.getTrace().dispatched(now)).withSeq(seq, prev));
+                });
+            } else {
+                queueUpdate(seq, event.getUsername(), (c, prev) -> c.syncCanvas(event.withSeq(seq, prev)));
+            }
+        }
+        this.metrics.event(event.getUsername());
+        this.metrics.broadcast(System.nanoTime() - received);
     }
 
     @Override
-    public byte[] sendCurrentCanvas() throws IOException {
-        return this.clientManager.getCurrentCanvas();
+    public void previewMsg(ICanvasMsg preview) throws RemoteException {
+        CanvasEvent event = CanvasEvent.copyOf(preview);
+        String from = event.getUsername();
+        // Previews are dropped after the pen is up or when they come faster than the rate cap
+        long now = System.nanoTime();
+        Long last = this.previewTimes.get(from);
+        if (PreviewSender.previewRate <= 0 || !this.board.isDrawing(from)
+                || (last != null && now - last < 1000000000L / PreviewSender.previewRate)) {
+            this.metrics.preview(false);
+            return;
+        }
+        this.previewTimes.put(from, now);
+        for (ClientQueue q : this.queues.values()) {
+            if (!q.getUsername().equals(from)) {
+                q.offerPreview(from, c -> c.syncPreview(event));
+            }
+        }
+        this.metrics.preview(true);
     }
 
     @Override
-    public void sendExistCanvas(byte[] canvas) throws IOException {
-        for (IClient c: this.manager.getClientList()) {
-            c.overrideCanvas(canvas);
+    public boolean resume(String token, IClient client, long applied) throws RemoteException {
+        Sessions.Session session = this.sessions.get(token);
+        if (session == null) {
+            return false;
+        }
+        String username = session.getUsername();
+        long start = System.nanoTime();
+        int resent = 0;
+        synchronized (this.board) {
+            // A client which noticed the loss first is still on the board under its old connection
+            IClient old = session.getClient();
+            if (this.queues.containsKey(old)) {
+                delClient(old);
+            }
+            this.sessions.attach(session, client);
+            if (session.isManager()) {
+                this.clientManager = client;
+            }
+            // Updates missed during the outage go out first, then streaming carries on from the board's sequence number
+            long seq = this.board.getSeq();
+            List<RecentUpdates.Update> missing = applied < 0 ? null : this.recent.range(applied, seq);
+            ClientQueue queue = new ClientQueue(client, username, board, metrics, () -> lose(client), seq);
+            if (missing == null) {
+                queue.requestSnapshot();
+            } else {
+                resent = resend(queue, username, missing, applied, seq);
+            }
+            this.queues.put(client, queue);
+            this.manager.addClient(client);
+            record(r -> r.join(username));
+        }
+        syncClientList();
+        if (session.isManager()) {
+            // Requests made while the manager was away were sent to the lost connection
+            syncJoinRequests();
+        }
+        this.metrics.resume(System.nanoTime() - start, resent);
+        System.out.println(username + " has resumed the session, " + resent + " updates resent");
+        return true;
+    }
+
+    @Override
+    public int heartbeat(String token) throws RemoteException {
+        return this.sessions.state(token);
+    }
+
+    @Override
+    public void resync(String username, long after, long until) throws RemoteException {
+        ClientQueue queue = queueOf(username);
+        if (queue == null) {
+            return;
+        }
+        List<RecentUpdates.Update> missing = after < 0 ? null : this.recent.range(after, until);
+        if (missing == null) {
+            System.out.println(username + " missed updates no longer kept, sending a snapshot");
+            queue.requestSnapshot();
+            this.metrics.resync(0, true);
+            return;
+        }
+        this.metrics.resync(resend(queue, username, missing, after, until), false);
+    }
+
+    // Send updates again ahead of the queued ones, chained as the client would have been sent them,
+    // then tell the client the rest of the range up to until was its own. Returns the number resent
+    private int resend(ClientQueue queue, String username, List<RecentUpdates.Update> missing, long after, long until) {
+        long prev = after;
+        int sent = 0;
+        for (RecentUpdates.Update u : missing) {
+            if (u.isFor(username)) {
+                long before = prev;
+                queue.offerControl(c -> u.getUpdate().deliver(c, before));
+                prev = u.getSeq();
+                sent++;
+            }
+        }
+        if (prev < until) {
+            queue.offerControl(c -> c.skipTo(until));
+        }
+        return sent;
+    }
+
+    @Override
+    public Chunk sendCurrentCanvas() throws IOException {
+        // Served from the server's board, re-encoded only after the board changes
+        return this.board.getTransfers().offer(this.board.snapshot().getImage());
+    }
+
+    @Override
+    public Chunk sendCanvasChunk(long id, long offset) throws RemoteException {
+        return this.board.getTransfers().chunk(id, offset);
+    }
+
+    @Override
+    public Tile sendCanvasPreview(String username) throws IOException {
+        return this.board.preview(sentTo(username));
+    }
+
+    @Override
+    public Tile sendCanvasTile(String username, Rectangle area) throws IOException {
+        return this.board.tile(area, sentTo(username));
+    }
+
+    // Last sequence number offered to a user, read with the board locked so that a piece of the board taken
+    // at the same time holds exactly the updates up to it that the user is sent
+    private LongSupplier sentTo(String username) {
+        ClientQueue queue = queueOf(username);
+        return queue == null ? this.board::getSeq : queue::getOfferedSeq;
+    }
+
+    private ClientQueue queueOf(String username) {
+        ClientQueue res = null;
+        for (ClientQueue q : this.queues.values()) {
+            if (q.getUsername().equals(username)) {
+                res = q;
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public long[] getHistorySpan() throws RemoteException {
+        return this.timeline.getSpan();
+    }
+
+    @Override
+    public Chunk sendBoardAt(long time) throws IOException {
+        // Rendered without the board locked, so several points in time are rendered at once
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        ImageIO.write(this.timeline.at(time), "png", image);
+        // Every frame is encoded afresh for the one caller, so it is not kept long after being sent
+        return this.board.getTransfers().offerOnce(image.toByteArray());
+    }
+
+    // Send an opened canvas to every client, called with the board locked
+    private void opened(long seq, byte[] canvas) throws IOException {
+        record(r -> r.open(canvas));
+        if (Tile.progressive) {
+            // Clients are sent a preview and load the tiles they look at first
+            Tile preview = this.board.preview();
+            queueReset(seq, c -> c.previewCanvas(preview, seq));
+        } else {
+            Chunk first = this.board.getTransfers().offer(canvas);
+            queueReset(seq, c -> c.overrideCanvas(first, seq));
+        }
+    }
+
+    @Override
+    public synchronized void beginOpen(int width, int height) throws RemoteException {
+        // Never larger than the board, whatever the caller says
+        this.opening = new BufferedImage(Math.max(1, Math.min(width, Utils.canvasWidth)),
+                Math.max(1, Math.min(height, Utils.canvasHeight)), BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Override
+    public void sendOpenBand(Tile band) throws IOException {
+        BufferedImage image = band.decode();
+        synchronized (this) {
+            if (this.opening == null || image == null) {
+                return;
+            }
+            Graphics2D g = this.opening.createGraphics();
+            g.drawImage(image, band.getArea().x, band.getArea().y, null);
+            g.dispose();
+        }
+    }
+
+    @Override
+    public void endOpen() throws IOException {
+        BufferedImage canvas;
+        synchronized (this) {
+            canvas = this.opening;
+            this.opening = null;
+        }
+        if (canvas == null) {
+            return;
+        }
+        // Encoded once for the history and clients which cannot load progressively
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(canvas, "png", png);
+        synchronized (this.board) {
+            long seq = this.board.override(canvas, png.toByteArray());
+            opened(seq, png.toByteArray());
         }
     }
 
     @Override
     public void cleanCanvas() throws RemoteException {
-        for (IClient c: this.manager.getClientList()) {
-            c.cleanCanvas();
+        synchronized (this.board) {
+            long seq = this.board.clean();
+            record(SessionTrace.Recorder::clean);
+            queueReset(seq, c -> c.cleanCanvas(seq));
+        }
+    }
+
+    @Override
+    public void cleanLayer(IClient caller, String username) throws RemoteException {
+        // The owner is known by the queue the server keeps for the caller, not by the name the caller gives
+        ClientQueue queue = caller == null ? null : this.queues.get(caller);
+        boolean owner = queue != null && queue.getUsername().equals(username);
+        if (!owner && (caller == null || !caller.equals(this.clientManager))) {
+            System.out.println("Layer of " + username + " cleaned by someone other than its owner or the manager, refused");
+            throw new AccessException("Only the owner or the manager can clean a layer");
+        }
+        synchronized (this.board) {
+            long seq = this.board.cleanLayer(username);
+            if (seq < 0) {
+                System.out.println("Layer of " + username + " cleaned outside layer mode, ignored");
+                return;
+            }
+            record(r -> r.cleanLayer(username));
+            queueUpdate(seq, null, (c, prev) -> c.cleanLayer(username, seq, prev));
         }
     }
 
     @Override
     public void broadcastChat(String msg) throws RemoteException {
+        record(r -> r.chat(msg));
         for (IClient c: this.manager.getClientList()) {
             c.syncChat(msg);
         }
@@ -0,0 +1,347 @@
+/**
+ * Class for the server's own copy of the white board.
+ * Every board-changing operation is applied here and stamped with a sequence number,
+ * so the server can hand out a snapshot without asking any client.
+ * An idle board can be hibernated to a file, and is read back the next time it is used.
+ */
+
+package server;
+
+import canvas.BoardEngine;
+import canvas.CanvasEvent;
+import canvas.Tile;
+import canvas.Utils;
+import metrics.ServerMetrics;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+public class BoardState {
+
+    // Board pixels kept outside the heap, enabled with -Dwhiteboard.board.offHeap=true on the server
+    public static final boolean offHeap = Boolean.getBoolean("whiteboard.board.offHeap");
+
+    // Hibernated board files start with "WBHB" and a version byte
+    private static final int magic = 0x57424842;
+    private static final int version = 1;
+
+    // Same engine the clients draw with, null while the board is hibernated
+    private BoardEngine engine = newEngine();
+    // Points of every free-hand or eraser stroke in progress
+    private final Map<String, List<Point>> strokes = new HashMap<>();
+    // Null while the board is hibernated
+    private History history = new History();
+    // File the board is hibernated to, null while it is in memory
+    private File hibernated;
+    // System.currentTimeMillis() of the last use of the board
+    private volatile long usedTime = System.currentTimeMillis();
+    private final SnapshotCache snapshots = new SnapshotCache(this);
+    // Encoded boards being sent in chunks
+    private final Transfers transfers = new Transfers();
+    private final ServerMetrics metrics;
+    private long seq = 0;
+    // Latest preview, shared by joiners until the board changes
+    private Tile preview;
+
+    public BoardState(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Sequence number of the last applied operation
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    public synchronized History getHistory() {
+        use();
+        return history;
+    }
+
+    // Apply a drawing and record finished ones in the history
+    public synchronized long apply(CanvasEvent draw) throws RemoteException {
+        use();
+        String user = draw.getUsername();
+        Point point = draw.getPoint();
+        Point start = engine.getPen(user);
+        engine.apply(draw);
+
+        switch (draw.getPaintState()) {
+            case Utils.paintStart:
+                List<Point> stroke = new ArrayList<>();
+                stroke.add(point);
+                strokes.put(user, stroke);
+                break;
+            case Utils.painting:
+                List<Point> points = strokes.get(user);
+                if (points != null) {
+                    points.add(point);
+                }
+                break;
+            case Utils.paintEnd:
+                List<Point> finished = strokes.remove(user);
+                String type = draw.getPaintType();
+                if (finished == null || !(type.equals(Utils.free) || type.equals(Utils.eraser))) {
+                    // Shapes only need their two corners, text its position
+                    finished = new ArrayList<>();
+                    if (!type.equals(Utils.text)) {
+                        finished.add(start == null ? point : start);
+                    }
+                }
+                finished.add(point);
+                history.addDrawing(++seq, type, draw.getColor(), user, finished, draw.getText());
+                return seq;
+        }
+        return ++seq;
+    }
+
+    // Whether the user's pen is down, previews are only shown while it is
+    public synchronized boolean isDrawing(String username) {
+        // Nobody is drawing on a hibernated board
+        return engine != null && engine.getPen(username) != null;
+    }
+
+    // Wipe the board
+    public synchronized long clean() {
+        use();
+        engine.clean();
+        history.addClean(++seq);
+        return seq;
+    }
+
+    // Wipe one user's layer, ignored outside layer mode where it returns -1
+    public synchronized long cleanLayer(String username) {
+        if (!BoardEngine.layered) {
+            return -1;
+        }
+        use();
+        engine.cleanLayer(username);
+        history.addCleanLayer(++seq, username);
+        return seq;
+    }
+
+    // Draw a streamed canvas over the board, png is its encoding kept in the history
+    public synchronized long override(BufferedImage canvas, byte[] png) {
+        use();
+        engine.override(canvas);
+        history.addOpen(++seq, png);
+        return seq;
+    }
+
+    // Low-resolution image of the whole board, shown to joiners while the tiles load
+    public Tile preview() throws IOException {
+        return preview(() -> seq);
+    }
+
+    // Preview stamped with sent, the last sequence number sent to the client asking for it, read along with the board
+    public Tile preview(LongSupplier sent) throws IOException {
+        BufferedImage copy;
+        long at;
+        long stamp;
+        synchronized (this) {
+            use();
+            stamp = sent.getAsLong();
+            if (preview != null && preview.getSeq() == seq) {
+                return preview.withSeq(stamp);
+            }
+            copy = engine.copy();
+            at = seq;
+        }
+        int scale = Tile.previewScale;
+        Tile res = Tile.encode(copy, new Rectangle(0, 0, copy.getWidth(), copy.getHeight()), at,
+                (copy.getWidth() + scale - 1) / scale, (copy.getHeight() + scale - 1) / scale);
+        synchronized (this) {
+            if (preview == null || preview.getSeq() < at) {
+                preview = res;
+            }
+        }
+        return res.withSeq(stamp);
+    }
+
+    // Full-resolution piece of the board as it is now, stamped with sent as the preview is
+    public Tile tile(Rectangle area, LongSupplier sent) throws IOException {
+        BufferedImage piece;
+        long at;
+        synchronized (this) {
+            use();
+            piece = engine.copy(area);
+            at = sent.getAsLong();
+        }
+        Rectangle covered = new Rectangle(Math.max(0, area.x), Math.max(0, area.y), piece.getWidth(), piece.getHeight());
+        return Tile.encode(piece, covered, at, piece.getWidth(), piece.getHeight());
+    }
+
+    // Encoded board, shared by all joiners until the board changes
+    public Snapshot snapshot() throws IOException {
+        return snapshots.get();
+    }
+
+    public Transfers getTransfers() {
+        return transfers;
+    }
+
+    public SnapshotCache getSnapshots() {
+        return snapshots;
+    }
+
+    // Copy the board and the strokes in progress at the same sequence number, then encode outside the lock
+    Snapshot encode() throws IOException {
+        BufferedImage copy;
+        long at;
+        List<CanvasEvent> inProgress = new ArrayList<>();
+        synchronized (this) {
+            use();
+            copy = engine.copy();
+            at = seq;
+            for (Map.Entry<String, Point> pen : engine.getPens().entrySet()) {
+                inProgress.add(new CanvasEvent(Utils.paintStart, Utils.free, Color.black,
+                        pen.getValue(), "", pen.getKey()));
+            }
+        }
+        long start = System.nanoTime();
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        ImageIO.write(copy, "png", image);
+        metrics.encode(System.nanoTime() - start, image.size());
+        return new Snapshot(at, image.toByteArray(), inProgress);
+    }
+
+    public synchronized boolean isHibernated() {
+        return hibernated != null;
+    }
+
+    // System.currentTimeMillis() of the last use of the board
+    public long getUsedTime() {
+        return usedTime;
+    }
+
+    // Rough memory held by the board, in bytes
+    public synchronized long estimateBytes() {
+        if (hibernated != null) {
+            return 0;
+        }
+        return 4L * Utils.canvasWidth * Utils.canvasHeight * (engine.isLayered() ? 2 : 1) + history.estimateBytes();
+    }
+
+    // Write the board to a file in dir and let go of it. Not in layer mode, where the image would flatten the layers,
+    // nor while strokes are in progress unless abandoned, when no one is left to finish them.
+    // Returns whether the board was hibernated
+    public boolean hibernate(File dir, boolean abandoned) throws IOException {
+        synchronized (this) {
+            if (hibernated != null || engine.isLayered()
+                    || (!abandoned && (!strokes.isEmpty() || !engine.getPens().isEmpty()))) {
+                return false;
+            }
+            strokes.clear();
+            // Encoded boards still being sent are kept apart from the board until they expire
+            transfers.expire();
+            long start = System.nanoTime();
+            File file = File.createTempFile("board-", ".wbh", dir);
+            file.deleteOnExit();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+                out.writeInt(magic);
+                out.writeByte(version);
+                out.writeLong(seq);
+                ByteArrayOutputStream image = new ByteArrayOutputStream();
+                ImageIO.write(engine.copy(), "png", image);
+                SessionTrace.writeVarLong(out, image.size());
+                image.writeTo(out);
+                history.write(out);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            engine = null;
+            history = null;
+            preview = null;
+            hibernated = file;
+            metrics.hibernate(System.nanoTime() - start, file.length());
+            System.out.println("Board #" + seq + " hibernated to " + file + " (" + file.length() + " bytes)");
+        }
+        // Outside the board's lock, the cache takes its own lock before the board's
+        snapshots.clear();
+        return true;
+    }
+
+    // Read a hibernated board back and note the use, called with the lock held.
+    // A board which cannot be read back stays hibernated and fails the operation, the next one tries again
+    private void use() {
+        usedTime = System.currentTimeMillis();
+        if (hibernated == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        BoardEngine restored = newEngine();
+        History read;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hibernated), 1 << 16))) {
+            if (in.readInt() != magic || in.readByte() != version || in.readLong() != seq) {
+                throw new IOException("Not a hibernated copy of this board");
+            }
+            byte[] image = new byte[(int) SessionTrace.readVarLong(in)];
+            in.readFully(image);
+            BufferedImage canvas = ImageIO.read(new ByteArrayInputStream(image));
+            if (canvas != null) {
+                restored.override(canvas);
+            }
+            read = History.read(in);
+        } catch (IOException e) {
+            System.out.println("Unable to restore the board from " + hibernated + "!");
+            metrics.restoreFailed();
+            throw new UncheckedIOException("Unable to restore the board from " + hibernated, e);
+        }
+        hibernated.delete();
+        hibernated = null;
+        engine = restored;
+        history = read;
+        metrics.restore(System.nanoTime() - start);
+    }
+
+    private static BoardEngine newEngine() {
+        return new BoardEngine(BoardEngine.layered, BoardEngine.fastRaster, offHeap);
+    }
+
+    // Encoded board at a given sequence number
+    public static class Snapshot {
+
+        private final long seq;
+        private final byte[] image;
+        private final List<CanvasEvent> pens;
+
+        Snapshot(long seq, byte[] image, List<CanvasEvent> pens) {
+            this.seq = seq;
+            this.image = image;
+            this.pens = pens;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public byte[] getImage() {
+            return image;
+        }
+
+        // paintStart messages which restore remote pen positions after the image is applied
+        public List<CanvasEvent> getPens() {
+            return pens;
+        }
+
+    }
+
+}
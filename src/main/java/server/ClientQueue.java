@@ -0,0 +1,338 @@
+/**
+ * Class for the outgoing board updates of one client.
+ * Updates are sent by a dedicated thread so a slow client does not hold up the others.
+ * When the backlog grows past a size or age limit, the queued updates are dropped
+ * and the client catches up with a snapshot of the server's board instead.
+ * Outgoing traffic is split into three lanes: control notifications, committed board updates,
+ * and previews of shapes being dragged, kept latest per user. The lanes are served by strict priority
+ * or by weighted turns, so control notifications never wait behind a drawing backlog.
+ */
+
+package server;
+
+import canvas.CanvasEvent;
+import client.IClient;
+import metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ClientQueue implements Runnable {
+
+    // Catch-up thresholds, configurable with -Dwhiteboard.lag.maxEvents and -Dwhiteboard.lag.maxMillis
+    public static final int maxBacklog = Integer.getInteger("whiteboard.lag.maxEvents", 2000);
+    public static final long maxLagMillis = Long.getLong("whiteboard.lag.maxMillis", 3000L);
+    // "strict" always serves the highest lane first, "weighted" gives the lanes turns by whiteboard.lanes.weights
+    public static final String scheduling = System.getProperty("whiteboard.lanes.scheduling", "strict");
+    // Deliveries in one round of weighted turns for the control, committed and preview lanes
+    private static final int[] weights = parseWeights(System.getProperty("whiteboard.lanes.weights", "8,4,1"));
+    // Failed deliveries in a row after which the client's connection is taken as lost, configurable with -Dwhiteboard.session.lostAfter
+    public static final int lostAfter = Integer.getInteger("whiteboard.session.lostAfter", 3);
+
+    // Lanes by priority
+    private static final int control = 0;
+    private static final int committed = 1;
+    private static final int preview = 2;
+
+    // A board update to be sent to the client
+    public interface Delivery {
+        void deliver(IClient client) throws IOException;
+    }
+
+    // A sequenced board update, told the sequence number of the update sent to the client before it
+    public interface Update {
+        void deliver(IClient client, long prev) throws IOException;
+    }
+
+    private static class Entry {
+        private final long seq;
+        // System.nanoTime() when queued
+        private final long time;
+        private final Update delivery;
+
+        Entry(long seq, Update delivery) {
+            this.seq = seq;
+            this.time = System.nanoTime();
+            this.delivery = delivery;
+        }
+    }
+
+    private final IClient client;
+    private final String username;
+    private final BoardState board;
+    private final ServerMetrics metrics;
+    // Called once when the client's connection is lost
+    private final Runnable lost;
+    private int failures = 0;
+    // Control notifications, sequence numbers are unused
+    private final ArrayDeque<Entry> controls = new ArrayDeque<>();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    // Latest preview of every user dragging a shape
+    private final Map<String, Delivery> previews = new LinkedHashMap<>();
+    // Deliveries left for each lane in the current round of weighted turns
+    private final int[] credits = weights.clone();
+    private boolean catchUp = false;
+    private boolean closed = false;
+    // Closing once the control notifications are sent, e.g. after telling a kicked client
+    private boolean closing = false;
+    // Sequence number of the last update the client has been sent
+    private long sentSeq;
+
+    public ClientQueue(IClient client, String username, BoardState board, ServerMetrics metrics, Runnable lost) {
+        this(client, username, board, metrics, lost, board.getSeq());
+    }
+
+    // Queue for a client which has been sent every update up to sentSeq, such as one resuming its session
+    public ClientQueue(IClient client, String username, BoardState board, ServerMetrics metrics, Runnable lost, long sentSeq) {
+        this.client = client;
+        this.username = username;
+        this.board = board;
+        this.metrics = metrics;
+        this.lost = lost;
+        this.sentSeq = sentSeq;
+        Thread t = new Thread(this, "sync-" + username);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static int[] parseWeights(String value) {
+        int[] res = {8, 4, 1};
+        String[] parts = value.split(",");
+        for (int i = 0; i < Math.min(parts.length, res.length); i++) {
+            try {
+                res[i] = Math.max(1, Integer.parseInt(parts[i].trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid lane weight " + parts[i] + "!");
+            }
+        }
+        return res;
+    }
+
+    // Queue an update, or switch to snapshot catch-up if the client lags too far behind
+    public synchronized void offer(long seq, Update delivery) {
+        if (closed || closing) {
+            return;
+        }
+        entries.addLast(new Entry(seq, delivery));
+        Entry oldest = entries.peekFirst();
+        if (entries.size() > maxBacklog || System.nanoTime() - oldest.time > maxLagMillis * 1000000) {
+            System.out.println(username + " is lagging behind, dropping " + entries.size() + " updates");
+            entries.clear();
+            catchUp = true;
+        }
+        notifyAll();
+    }
+
+    // Queue an update which covers the whole board, such as a clean or an opened canvas.
+    // Updates still waiting would be wiped by it, so they are dropped and it goes out next.
+    public synchronized void offerReset(long seq, Delivery delivery) {
+        if (closed || closing) {
+            return;
+        }
+        entries.clear();
+        catchUp = false;
+        entries.addLast(new Entry(seq, (c, prev) -> delivery.deliver(c)));
+        notifyAll();
+    }
+
+    // Drop the queued updates and send a snapshot next, for a client whose missing updates are too old to resend
+    public synchronized void requestSnapshot() {
+        if (closed || closing) {
+            return;
+        }
+        entries.clear();
+        catchUp = true;
+        notifyAll();
+    }
+
+    // Queue a control notification, sent ahead of board updates
+    public synchronized void offerControl(Delivery delivery) {
+        if (closed || closing) {
+            return;
+        }
+        controls.addLast(new Entry(0, (c, prev) -> delivery.deliver(c)));
+        notifyAll();
+    }
+
+    // Replace the user's preview waiting to be sent, previews are never queued behind each other
+    public synchronized void offerPreview(String from, Delivery delivery) {
+        if (closed || closing) {
+            return;
+        }
+        previews.put(from, delivery);
+        notifyAll();
+    }
+
+    // Forget the user's preview once their shape is committed
+    public synchronized void dropPreview(String from) {
+        previews.remove(from);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    // Sequence number of the last update offered to the client, whether it has been sent or is still waiting
+    public synchronized long getOfferedSeq() {
+        Entry last = entries.peekLast();
+        return last == null ? sentSeq : Math.max(sentSeq, last.seq);
+    }
+
+    // Number of updates waiting to be sent
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Stop sending updates to this client
+    public synchronized void close() {
+        closed = true;
+        controls.clear();
+        entries.clear();
+        previews.clear();
+        notifyAll();
+    }
+
+    // Send a last control notification, then stop
+    public synchronized void closeAfter(Delivery delivery) {
+        if (closed || closing) {
+            return;
+        }
+        controls.addLast(new Entry(0, (c, prev) -> delivery.deliver(c)));
+        closing = true;
+        entries.clear();
+        previews.clear();
+        catchUp = false;
+        notifyAll();
+    }
+
+    private boolean isEmpty(int lane) {
+        switch (lane) {
+            case control:
+                return controls.isEmpty();
+            case committed:
+                return entries.isEmpty() && !catchUp;
+            default:
+                return previews.isEmpty();
+        }
+    }
+
+    // Lane to serve next, -1 when all are empty
+    private int nextLane() {
+        if (scheduling.equals("weighted")) {
+            for (int round = 0; round < 2; round++) {
+                for (int lane = control; lane <= preview; lane++) {
+                    if (!isEmpty(lane) && credits[lane] > 0) {
+                        credits[lane]--;
+                        return lane;
+                    }
+                }
+                // Every waiting lane has used its turns, start a new round
+                System.arraycopy(weights, 0, credits, 0, credits.length);
+            }
+            return -1;
+        }
+        for (int lane = control; lane <= preview; lane++) {
+            if (!isEmpty(lane)) {
+                return lane;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Entry entry = null;
+            Delivery delivery = null;
+            boolean snapshot = false;
+            int lane;
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        return;
+                    }
+                    lane = nextLane();
+                    if (lane >= 0) {
+                        break;
+                    }
+                    if (closing) {
+                        closed = true;
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (lane == control) {
+                    entry = controls.pollFirst();
+                } else if (lane == committed) {
+                    snapshot = catchUp;
+                    catchUp = false;
+                    if (!snapshot) {
+                        entry = entries.pollFirst();
+                    }
+                } else {
+                    Iterator<Delivery> it = previews.values().iterator();
+                    delivery = it.next();
+                    it.remove();
+                }
+            }
+            if (lane == control) {
+                try {
+                    entry.delivery.deliver(client, 0);
+                    metrics.control(System.nanoTime() - entry.time);
+                    failures = 0;
+                } catch (IOException e) {
+                    System.out.println("Unable to notify " + username + "!");
+                    failed();
+                }
+                continue;
+            }
+            try {
+                if (snapshot) {
+                    sendSnapshot();
+                } else if (lane == preview) {
+                    delivery.deliver(client);
+                } else if (entry.seq > sentSeq) {
+                    // Updates already covered by a snapshot are skipped.
+                    // One which fails still counts as sent, so the client sees the gap and asks for it again
+                    long prev = sentSeq;
+                    sentSeq = entry.seq;
+                    entry.delivery.deliver(client, prev);
+                    metrics.delivery(System.nanoTime() - entry.time);
+                }
+                failures = 0;
+            } catch (IOException e) {
+                System.out.println("Unable to sync canvas with " + username + "!");
+                failed();
+            }
+        }
+    }
+
+    // Count a failed delivery and report the connection as lost after too many in a row
+    private void failed() {
+        if (++failures == lostAfter && lostAfter > 0 && lost != null) {
+            lost.run();
+        }
+    }
+
+    // Send the whole board, then resume streaming after the snapshot's sequence number
+    private void sendSnapshot() throws IOException {
+        BoardState.Snapshot s = board.snapshot();
+        sentSeq = s.getSeq();
+        // Read by this client only, so the payload is let go soon after its last chunk
+        client.overrideCanvas(board.getTransfers().offerOnce(s.getImage()), s.getSeq());
+        for (CanvasEvent pen : s.getPens()) {
+            if (!pen.getUsername().equals(username)) {
+                client.syncCanvas(pen);
+            }
+        }
+        System.out.println(username + " caught up with snapshot #" + sentSeq);
+    }
+
+}
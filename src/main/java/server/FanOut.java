@@ -0,0 +1,121 @@
+/**
+ * Class for calling every client at once for control operations.
+ * Calls run in parallel on a dedicated executor, on virtual threads when the runtime has them,
+ * and are bounded by a deadline, so an operation takes about as long as its slowest client, not the sum of all clients.
+ */
+
+package server;
+
+import client.IClient;
+import metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class FanOut {
+
+    // Time allowed for one control operation to reach every client, configurable with -Dwhiteboard.fanout.deadlineMillis
+    public static final long deadlineMillis = Long.getLong("whiteboard.fanout.deadlineMillis", 5000L);
+
+    // A remote call made on one client
+    public interface Call {
+        void call(IClient client) throws IOException;
+    }
+
+    // Outcome of calling every client
+    public static class Result {
+        private final int done;
+        private final int failed;
+        private final int timedOut;
+
+        Result(int done, int failed, int timedOut) {
+            this.done = done;
+            this.failed = failed;
+            this.timedOut = timedOut;
+        }
+
+        public int getDone() {
+            return done;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d done, %d failed, %d timed out", done, failed, timedOut);
+        }
+    }
+
+    private final ServerMetrics metrics;
+    private final ExecutorService executor = newExecutor();
+
+    public FanOut(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Virtual threads on Java 21 and later, a pool of daemon threads otherwise
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "fan-out");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // Call every client in parallel and wait until all have answered or the deadline has passed
+    public Result run(String operation, Collection<IClient> clients, Call call) {
+        long start = System.nanoTime();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (IClient c : clients) {
+            tasks.add(() -> {
+                call.call(c);
+                return null;
+            });
+        }
+        int done = 0;
+        int failed = 0;
+        int timedOut = 0;
+        try {
+            // Calls still running at the deadline are cancelled
+            for (Future<Void> f : executor.invokeAll(tasks, deadlineMillis, TimeUnit.MILLISECONDS)) {
+                try {
+                    f.get();
+                    done++;
+                } catch (CancellationException e) {
+                    timedOut++;
+                } catch (ExecutionException e) {
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            timedOut = tasks.size() - done - failed;
+        }
+        Result result = new Result(done, failed, timedOut);
+        metrics.fanOut(operation, System.nanoTime() - start, timedOut);
+        if (failed > 0 || timedOut > 0) {
+            System.out.println("Unable to " + operation + " with every client: " + result);
+        }
+        return result;
+    }
+
+}
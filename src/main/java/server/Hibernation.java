@@ -0,0 +1,114 @@
+/**
+ * Class for hibernating idle boards to disk.
+ * A board no client is connected to is written out once it has been left idle for a while, and whenever
+ * the boards in memory take more than the memory budget, the least recently used ones are written out,
+ * those without clients first. A hibernated board is read back the next time it is used.
+ */
+
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+public class Hibernation {
+
+    // Idle time after which a board without clients is hibernated, configurable with -Dwhiteboard.hibernate.idleMillis, 0 never
+    public static final long idleMillis = Long.getLong("whiteboard.hibernate.idleMillis", 600000L);
+    // Memory the boards may take before the least recently used are hibernated, configurable with -Dwhiteboard.hibernate.budgetMB
+    public static final long budgetBytes = Long.getLong("whiteboard.hibernate.budgetMB", 1024L) << 20;
+    // Directory of the hibernated boards, configurable with -Dwhiteboard.hibernate.dir
+    public static final File dir = new File(System.getProperty("whiteboard.hibernate.dir", System.getProperty("java.io.tmpdir")));
+
+    // One for the whole server, so every hosted board counts against the same budget
+    private static final Hibernation shared = new Hibernation();
+
+    private static class Hosted {
+        private final BoardState board;
+        // Whether any client is connected to the board
+        private final BooleanSupplier connected;
+
+        Hosted(BoardState board, BooleanSupplier connected) {
+            this.board = board;
+            this.connected = connected;
+        }
+    }
+
+    private final List<Hosted> boards = new CopyOnWriteArrayList<>();
+    private Thread sweeper;
+
+    public static Hibernation shared() {
+        return shared;
+    }
+
+    // Watch a board, connected tells whether any client is connected to it
+    public synchronized void host(BoardState board, BooleanSupplier connected) {
+        boards.add(new Hosted(board, connected));
+        if (sweeper == null) {
+            sweeper = new Thread(this::run, "hibernation");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        }
+    }
+
+    private void run() {
+        long interval = idleMillis > 0 ? Math.max(50, Math.min(1000, idleMillis / 4)) : 1000;
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sweep();
+        }
+    }
+
+    // Hibernate the boards left idle, then the least recently used until the rest fit the budget
+    void sweep() {
+        long now = System.currentTimeMillis();
+        for (Hosted h : boards) {
+            if (idleMillis > 0 && !h.connected.getAsBoolean() && !h.board.isHibernated()
+                    && now - h.board.getUsedTime() > idleMillis) {
+                hibernate(h, true);
+            }
+        }
+        long total = 0;
+        List<Hosted> resident = new ArrayList<>();
+        for (Hosted h : boards) {
+            long bytes = h.board.estimateBytes();
+            if (bytes > 0) {
+                total += bytes;
+                resident.add(h);
+            }
+        }
+        if (total <= budgetBytes) {
+            return;
+        }
+        resident.sort(Comparator.comparing((Hosted h) -> h.connected.getAsBoolean())
+                .thenComparingLong(h -> h.board.getUsedTime()));
+        for (Hosted h : resident) {
+            if (total <= budgetBytes) {
+                return;
+            }
+            long bytes = h.board.estimateBytes();
+            if (hibernate(h, !h.connected.getAsBoolean())) {
+                total -= bytes;
+            }
+        }
+    }
+
+    // Strokes left in progress on a board without clients are abandoned
+    private static boolean hibernate(Hosted h, boolean abandoned) {
+        try {
+            return h.board.hibernate(dir, abandoned);
+        } catch (IOException e) {
+            System.out.println("Unable to hibernate a board to " + dir + "!");
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Class for the history of completed operations on the board.
+ * Free-hand and eraser strokes are simplified before they are stored.
+ * A hibernated board writes its history out compactly and reads it back when it is used again.
+ */
+
+package server;
+
+import canvas.Simplify;
+import canvas.Utils;
+
+import java.awt.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class History {
+
+    // Tolerance of stroke simplification in pixels, 0 stores every raw point
+    public static final double tolerance = Double.parseDouble(System.getProperty("whiteboard.simplify.tolerance", "1.0"));
+
+    // Operation types besides the paint modes in Utils
+    public static final String clean = "clean";
+    public static final String open = "open";
+    public static final String cleanLayer = "cleanLayer";
+
+    // One completed operation
+    public static class Operation {
+
+        private final long seq;
+        private final long time;
+        private final String type;
+        private final Color color;
+        private final String username;
+        private final List<Point> points;
+        private final String text;
+        private final byte[] image;
+
+        Operation(long seq, String type, Color color, String username, List<Point> points, String text, byte[] image) {
+            this(seq, System.currentTimeMillis(), type, color, username, points, text, image);
+        }
+
+        Operation(long seq, long time, String type, Color color, String username, List<Point> points, String text, byte[] image) {
+            this.seq = seq;
+            this.time = time;
+            this.type = type;
+            this.color = color;
+            this.username = username;
+            this.points = points;
+            this.text = text;
+            this.image = image;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public Color getColor() {
+            return color;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        // Stroke points, or start and end of a shape, or position of a text
+        public List<Point> getPoints() {
+            return points;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        // Opened canvas as PNG
+        public byte[] getImage() {
+            return image;
+        }
+
+    }
+
+    private final List<Operation> operations = new ArrayList<>();
+    private long rawPoints = 0;
+    private long storedPoints = 0;
+    private double maxError = 0;
+
+    // Record a finished drawing, simplifying free-hand and eraser strokes
+    public synchronized void addDrawing(long seq, String type, Color color, String username, List<Point> points, String text) {
+        List<Point> stored = points;
+        if (type.equals(Utils.free) || type.equals(Utils.eraser)) {
+            Simplify.Result res = Simplify.stroke(points, tolerance);
+            stored = res.getPoints();
+            maxError = Math.max(maxError, res.getMaxError());
+            rawPoints += points.size();
+            storedPoints += stored.size();
+        }
+        operations.add(new Operation(seq, type, color, username, stored, text, null));
+    }
+
+    public synchronized void addClean(long seq) {
+        operations.add(new Operation(seq, clean, Color.white, null, Collections.emptyList(), null, null));
+    }
+
+    public synchronized void addCleanLayer(long seq, String username) {
+        operations.add(new Operation(seq, cleanLayer, Color.white, username, Collections.emptyList(), null, null));
+    }
+
+    public synchronized void addOpen(long seq, byte[] image) {
+        operations.add(new Operation(seq, open, null, null, Collections.emptyList(), null, image));
+    }
+
+    public synchronized List<Operation> getOperations() {
+        return new ArrayList<>(operations);
+    }
+
+    public synchronized int size() {
+        return operations.size();
+    }
+
+    // Raw stroke points divided by stored stroke points
+    public synchronized double getSimplifyRatio() {
+        return storedPoints == 0 ? 1 : (double) rawPoints / storedPoints;
+    }
+
+    // Largest distance between a dropped point and its stored stroke, in pixels
+    public synchronized double getMaxError() {
+        return maxError;
+    }
+
+    // Rough size of the history in memory, in bytes
+    public synchronized long estimateBytes() {
+        long bytes = 0;
+        for (Operation op : operations) {
+            bytes += 64 + op.points.size() * 24L + (op.image == null ? 0 : op.image.length)
+                    + (op.text == null ? 0 : op.text.length() * 2L);
+        }
+        return bytes;
+    }
+
+    // Write the operations and the simplification figures, read back by read()
+    public synchronized void write(DataOutputStream out) throws IOException {
+        SessionTrace.writeVarLong(out, rawPoints);
+        SessionTrace.writeVarLong(out, storedPoints);
+        out.writeDouble(maxError);
+        SessionTrace.writeVarLong(out, operations.size());
+        for (Operation op : operations) {
+            SessionTrace.writeVarLong(out, op.seq);
+            out.writeLong(op.time);
+            out.writeUTF(op.type);
+            out.writeBoolean(op.color != null);
+            if (op.color != null) {
+                out.writeInt(op.color.getRGB());
+            }
+            writeNullable(out, op.username);
+            writeNullable(out, op.text);
+            SessionTrace.writeVarLong(out, op.points.size());
+            for (Point p : op.points) {
+                out.writeShort(p.x);
+                out.writeShort(p.y);
+            }
+            SessionTrace.writeVarLong(out, op.image == null ? 0 : op.image.length + 1);
+            if (op.image != null) {
+                out.write(op.image);
+            }
+        }
+    }
+
+    public static History read(DataInputStream in) throws IOException {
+        History res = new History();
+        res.rawPoints = SessionTrace.readVarLong(in);
+        res.storedPoints = SessionTrace.readVarLong(in);
+        res.maxError = in.readDouble();
+        long count = SessionTrace.readVarLong(in);
+        for (long i = 0; i < count; i++) {
+            long seq = SessionTrace.readVarLong(in);
+            long time = in.readLong();
+            String type = in.readUTF();
+            Color color = in.readBoolean() ? new Color(in.readInt()) : null;
+            String username = readNullable(in);
+            String text = readNullable(in);
+            int size = (int) SessionTrace.readVarLong(in);
+            List<Point> points = size == 0 ? Collections.emptyList() : new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                points.add(new Point(in.readShort(), in.readShort()));
+            }
+            int length = (int) SessionTrace.readVarLong(in);
+            byte[] image = null;
+            if (length > 0) {
+                image = new byte[length - 1];
+                in.readFully(image);
+            }
+            res.operations.add(new Operation(seq, time, type, color, username, points, text, image));
+        }
+        return res;
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public synchronized String report() {
+        return String.format("History: %d operations, stroke points %d -> %d (%.1fx), max error %.2fpx",
+                operations.size(), rawPoints, storedPoints, getSimplifyRatio(), maxError);
+    }
+
+}
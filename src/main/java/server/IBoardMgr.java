@@ -6,11 +6,15 @@
 package server;
 
 import client.IClient;
+import canvas.Chunk;
 import canvas.ICanvasMsg;
+import canvas.Tile;
 
+import java.awt.*;
 import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import java.util.Set;
 
 public interface IBoardMgr extends Remote {
@@ -18,6 +22,12 @@ public interface IBoardMgr extends Remote {
     // Record clients connected to the server
     void login(IClient client) throws RemoteException;
 
+    // Join requests waiting for the manager's decision
+    List<String> getJoinRequests() throws RemoteException;
+
+    // Manager approves or rejects join requests, one or many at a time, refused for any other caller
+    void decideJoinRequests(IClient manager, List<String> usernames, boolean access) throws RemoteException;
+
     // Check if the name is duplicated
     boolean invalidUsername(String username) throws RemoteException;
 
@@ -39,15 +49,55 @@ public interface IBoardMgr extends Remote {
     // Broadcast updates of canvas to all clients
     void broadcastMsg(ICanvasMsg draw) throws RemoteException;
 
-    // Send the current canvas to newly joined clients
-    byte[] sendCurrentCanvas() throws IOException;
+    // Forward the latest preview of a shape being dragged, dropped when it comes too often
+    void previewMsg(ICanvasMsg preview) throws RemoteException;
+
+    // Re-attach a client whose connection was lost to its session, without asking the manager again.
+    // Updates after applied are sent again, or a snapshot if they are no longer kept. False if the session has expired
+    boolean resume(String token, IClient client, long applied) throws RemoteException;
+
+    // State of the session of a token, a client checks in with this to notice a lost connection:
+    // Sessions.attached, Sessions.lost, or Sessions.ended when the manager has closed it
+    int heartbeat(String token) throws RemoteException;
+
+    // Send a client again the updates it missed after one sequence number up to another,
+    // or a snapshot when after is negative or they are no longer kept
+    void resync(String username, long after, long until) throws RemoteException;
+
+    // Send the current canvas to newly joined clients, as the first chunk of its encoding
+    Chunk sendCurrentCanvas() throws IOException;
+
+    // Chunk of an encoded canvas being sent, starting at an offset, null if it is no longer kept
+    Chunk sendCanvasChunk(long id, long offset) throws RemoteException;
 
-    // Send existing canvas to all clients when the manager opens it
-    void sendExistCanvas(byte[] canvas) throws IOException;
+    // Low-resolution preview of the whole board, shown to newly joined clients first,
+    // stamped with the sequence number of the last update sent to the user asking for it
+    Tile sendCanvasPreview(String username) throws IOException;
+
+    // Full-resolution piece of the current board, loaded after the preview and stamped as the preview is
+    Tile sendCanvasTile(String username, Rectangle area) throws IOException;
+
+    // Time of the first and the last operation in the board's history, in milliseconds since the epoch, empty if none
+    long[] getHistorySpan() throws RemoteException;
+
+    // The board as it was at a time of its history, as the first chunk of its encoding
+    Chunk sendBoardAt(long time) throws IOException;
+
+    // Start streaming a canvas the manager opens, of width by height pixels already fitted to the board
+    void beginOpen(int width, int height) throws RemoteException;
+
+    // A band of the canvas being opened
+    void sendOpenBand(Tile band) throws IOException;
+
+    // Show the streamed canvas to every client as one update
+    void endOpen() throws IOException;
 
     // Clean the shared canvas
     void cleanCanvas() throws RemoteException;
 
+    // Clean one user's layer of the shared canvas in layer mode, refused unless the caller owns it or is the manager
+    void cleanLayer(IClient caller, String username) throws RemoteException;
+
     // Send the new chat to the chat window
     void broadcastChat(String chat) throws RemoteException;
 
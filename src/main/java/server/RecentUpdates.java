@@ -0,0 +1,84 @@
+/**
+ * Class for the latest board updates sent to clients, kept so a client which missed some
+ * can be sent just the missing range instead of the whole board.
+ * Every sequence number goes through here, so the window is contiguous from its oldest update.
+ */
+
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecentUpdates {
+
+    // Updates kept for resync, configurable with -Dwhiteboard.resync.window
+    public static final int window = Integer.getInteger("whiteboard.resync.window", 4096);
+
+    // One update as sent to every client but the one who made it
+    public static class Update {
+
+        private final long seq;
+        // Username of the drawer, null for updates every client is sent
+        private final String from;
+        private final ClientQueue.Update update;
+
+        Update(long seq, String from, ClientQueue.Update update) {
+            this.seq = seq;
+            this.from = from;
+            this.update = update;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public ClientQueue.Update getUpdate() {
+            return update;
+        }
+
+        // Whether the user is sent this update
+        public boolean isFor(String username) {
+            return from == null || !from.equals(username);
+        }
+
+    }
+
+    private final ArrayDeque<Update> updates = new ArrayDeque<>();
+    // Sequence number of the newest update, known even when the window keeps none
+    private long newest = 0;
+
+    public synchronized void add(long seq, String from, ClientQueue.Update update) {
+        newest = Math.max(newest, seq);
+        if (window <= 0) {
+            return;
+        }
+        updates.addLast(new Update(seq, from, update));
+        while (updates.size() > window) {
+            updates.removeFirst();
+        }
+    }
+
+    // Updates after one sequence number up to another, empty if there is none after it yet,
+    // null if some of them have left the window
+    public synchronized List<Update> range(long after, long until) {
+        if (after >= newest) {
+            return new ArrayList<>();
+        }
+        Update oldest = updates.peekFirst();
+        if (oldest == null || oldest.seq > after + 1) {
+            return null;
+        }
+        List<Update> res = new ArrayList<>();
+        for (Update u : updates) {
+            if (u.seq > until) {
+                break;
+            }
+            if (u.seq > after) {
+                res.add(u);
+            }
+        }
+        return res;
+    }
+
+}
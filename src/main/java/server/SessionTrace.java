@@ -0,0 +1,261 @@
+/**
+ * Compact binary trace of a session: every drawing, chat and membership event seen by BoardMgr, with timestamps.
+ * A trace starts with "WBTR" and a version byte, followed by records of
+ * kind (byte), microseconds since the previous record (varint) and a payload.
+ * Usernames are written once and then referred to by number.
+ */
+
+package server;
+
+import canvas.CanvasEvent;
+import canvas.Utils;
+
+import java.awt.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SessionTrace {
+
+    private static final int magic = 0x57425452;
+    private static final int version = 1;
+
+    // Record kinds
+    public static final byte name = 0;
+    public static final byte draw = 1;
+    public static final byte chat = 2;
+    public static final byte join = 3;
+    public static final byte leave = 4;
+    public static final byte clean = 5;
+    public static final byte open = 6;
+    public static final byte cleanLayer = 7;
+
+    private static final List<String> states = Arrays.asList(Utils.paintStart, Utils.painting, Utils.paintEnd);
+    private static final List<String> types = Arrays.asList(Utils.free, Utils.line, Utils.circle, Utils.triangle,
+            Utils.rectangle, Utils.text, Utils.eraser);
+
+    // One event read back from a trace
+    public static class Record {
+
+        private final byte kind;
+        // Microseconds since the start of the recording
+        private final long time;
+        private final String username;
+        private final CanvasEvent event;
+        private final String text;
+        private final byte[] image;
+
+        Record(byte kind, long time, String username, CanvasEvent event, String text, byte[] image) {
+            this.kind = kind;
+            this.time = time;
+            this.username = username;
+            this.event = event;
+            this.text = text;
+            this.image = image;
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        // User who drew, joined or left, or whose layer was cleaned
+        public String getUsername() {
+            return username;
+        }
+
+        public CanvasEvent getEvent() {
+            return event;
+        }
+
+        // Chat message
+        public String getText() {
+            return text;
+        }
+
+        // Opened canvas as PNG
+        public byte[] getImage() {
+            return image;
+        }
+
+    }
+
+    // Appends events to a trace file, safe to call from several RMI threads
+    public static class Recorder implements Closeable {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> names = new HashMap<>();
+        private final long start = System.nanoTime();
+        private long last = 0;
+
+        public Recorder(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeInt(magic);
+            out.writeByte(version);
+        }
+
+        private void header(byte kind) throws IOException {
+            long now = (System.nanoTime() - start) / 1000;
+            out.writeByte(kind);
+            writeVarLong(out, Math.max(0, now - last));
+            last = Math.max(last, now);
+        }
+
+        private int nameId(String username) throws IOException {
+            Integer id = names.get(username);
+            if (id == null) {
+                id = names.size();
+                names.put(username, id);
+                header(name);
+                out.writeUTF(username);
+            }
+            return id;
+        }
+
+        public synchronized void draw(CanvasEvent event) throws IOException {
+            int id = nameId(event.getUsername());
+            header(draw);
+            writeVarLong(out, id);
+            // The top bit of the state marks a rough segment
+            out.writeByte(states.indexOf(event.getPaintState()) | (event.isRough() ? 0x80 : 0));
+            out.writeByte(types.indexOf(event.getPaintType()));
+            out.writeInt(event.getColor() == null ? 0 : event.getColor().getRGB());
+            out.writeShort(event.getPoint().x);
+            out.writeShort(event.getPoint().y);
+            if (event.getPaintType().equals(Utils.text) && event.getPaintState().equals(Utils.paintEnd)) {
+                out.writeUTF(event.getText() == null ? "" : event.getText());
+            }
+        }
+
+        public synchronized void chat(String msg) throws IOException {
+            header(chat);
+            out.writeUTF(msg);
+        }
+
+        public synchronized void join(String username) throws IOException {
+            int id = nameId(username);
+            header(join);
+            writeVarLong(out, id);
+        }
+
+        public synchronized void leave(String username) throws IOException {
+            int id = nameId(username);
+            header(leave);
+            writeVarLong(out, id);
+        }
+
+        public synchronized void clean() throws IOException {
+            header(clean);
+        }
+
+        public synchronized void cleanLayer(String username) throws IOException {
+            int id = nameId(username);
+            header(cleanLayer);
+            writeVarLong(out, id);
+        }
+
+        public synchronized void open(byte[] image) throws IOException {
+            header(open);
+            writeVarLong(out, image.length);
+            out.write(image);
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+
+    }
+
+    // Reads a trace record by record
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final List<String> names = new ArrayList<>();
+        private long time = 0;
+
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            if (in.readInt() != magic || in.readByte() != version) {
+                throw new IOException("Not a white board session trace: " + file);
+            }
+        }
+
+        // Next record, null at the end of the trace
+        public Record next() throws IOException {
+            while (true) {
+                int kind = in.read();
+                if (kind < 0) {
+                    return null;
+                }
+                time += readVarLong(in);
+                switch (kind) {
+                    case name:
+                        names.add(in.readUTF());
+                        break;
+                    case draw:
+                        String user = names.get((int) readVarLong(in));
+                        int stateByte = in.readUnsignedByte();
+                        String state = states.get(stateByte & 0x7F);
+                        String type = types.get(in.readByte());
+                        Color color = new Color(in.readInt(), true);
+                        Point point = new Point(in.readShort(), in.readShort());
+                        String text = type.equals(Utils.text) && state.equals(Utils.paintEnd) ? in.readUTF() : "";
+                        return new Record(draw, time, user, new CanvasEvent(state, type, color, point, text, user)
+                                .withRough((stateByte & 0x80) != 0), null, null);
+                    case chat:
+                        return new Record(chat, time, null, null, in.readUTF(), null);
+                    case join:
+                    case leave:
+                    case cleanLayer:
+                        return new Record((byte) kind, time, names.get((int) readVarLong(in)), null, null, null);
+                    case clean:
+                        return new Record(clean, time, null, null, null, null);
+                    case open:
+                        byte[] image = new byte[(int) readVarLong(in)];
+                        in.readFully(image);
+                        return new Record(open, time, null, null, null, image);
+                    default:
+                        throw new IOException("Unknown record kind " + kind);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
@@ -0,0 +1,174 @@
+/**
+ * Class for the sessions of admitted clients.
+ * Every admitted client is given a token. When its connection is lost the session is kept for a while,
+ * so the client can re-attach with the token without asking the manager again
+ * and be sent only the updates it missed.
+ */
+
+package server;
+
+import client.IClient;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+public class Sessions {
+
+    // Time a lost client can resume its session, configurable with -Dwhiteboard.session.resumeMillis
+    public static final long resumeMillis = Long.getLong("whiteboard.session.resumeMillis", 60000L);
+
+    // States of a session told to a client checking in
+    public static final int attached = 0;
+    public static final int lost = 1;
+    // Closed by the manager, the client is being told to quit and must not take it for a lost connection
+    public static final int ended = 2;
+
+    public static class Session {
+
+        private final String token;
+        private final String username;
+        private final boolean manager;
+        private IClient client;
+        // System.currentTimeMillis() when the connection was lost, -1 while attached
+        private long lostTime = -1;
+
+        Session(String token, String username, boolean manager, IClient client) {
+            this.token = token;
+            this.username = username;
+            this.manager = manager;
+            this.client = client;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public boolean isManager() {
+            return manager;
+        }
+
+        // Client attached to the session, the last one if it is lost
+        public IClient getClient() {
+            return client;
+        }
+
+        public boolean isAttached() {
+            return lostTime < 0;
+        }
+
+    }
+
+    private final Map<String, Session> sessions = new HashMap<>();
+    // Tokens of sessions the manager has closed, with the time they were, kept as long as a lost session would be
+    private final Map<String, Long> closed = new HashMap<>();
+
+    // Start a session for an admitted client, returns its token
+    public synchronized String open(String username, boolean manager, IClient client) {
+        String token = UUID.randomUUID().toString();
+        sessions.put(token, new Session(token, username, manager, client));
+        return token;
+    }
+
+    // Session of a token, null if there is none or it has expired
+    public synchronized Session get(String token) {
+        expire();
+        return token == null ? null : sessions.get(token);
+    }
+
+    // Attach a client to a session again
+    public synchronized void attach(Session session, IClient client) {
+        session.client = client;
+        session.lostTime = -1;
+    }
+
+    // Keep the session of a client whose connection is lost, so it can resume
+    public synchronized Session detach(IClient client) {
+        Session s = find(client);
+        if (s != null) {
+            s.lostTime = System.currentTimeMillis();
+        }
+        return s;
+    }
+
+    // End the session of a client which has left or been kicked out
+    public synchronized void close(IClient client) {
+        Session s = find(client);
+        if (s != null) {
+            sessions.remove(s.token);
+            closed.put(s.token, System.currentTimeMillis());
+        }
+    }
+
+    // End every session, when the manager ends the board
+    public synchronized void clear() {
+        long now = System.currentTimeMillis();
+        for (String token : sessions.keySet()) {
+            closed.put(token, now);
+        }
+        sessions.clear();
+    }
+
+    // State of the session of a token, lost if it is unknown or has expired
+    public synchronized int state(String token) {
+        expire();
+        if (token == null) {
+            return lost;
+        }
+        if (closed.containsKey(token)) {
+            return ended;
+        }
+        Session s = sessions.get(token);
+        return s != null && s.isAttached() ? attached : lost;
+    }
+
+    // Whether a lost client may still come back under this name
+    public synchronized boolean isReserved(String username) {
+        expire();
+        for (Session s : sessions.values()) {
+            if (!s.isAttached() && s.username.equals(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the manager's connection is lost but may still come back
+    public synchronized boolean isManagerLost() {
+        expire();
+        for (Session s : sessions.values()) {
+            if (s.manager && !s.isAttached()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Session find(IClient client) {
+        for (Session s : sessions.values()) {
+            if (s.client.equals(client)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session s = it.next();
+            if (!s.isAttached() && now - s.lostTime > resumeMillis) {
+                System.out.println("Session of " + s.username + " has expired");
+                it.remove();
+            }
+        }
+        closed.values().removeIf(time -> now - time > resumeMillis);
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Class for caching the encoded board by version.
+ * Joiners and lagging clients arriving while the board is unchanged share one PNG encode.
+ */
+
+package server;
+
+import java.io.IOException;
+
+public class SnapshotCache {
+
+    private final BoardState board;
+    private BoardState.Snapshot cached;
+    private long hits = 0;
+    private long misses = 0;
+
+    public SnapshotCache(BoardState board) {
+        this.board = board;
+    }
+
+    // Concurrent callers wait for one encode and then share it
+    public synchronized BoardState.Snapshot get() throws IOException {
+        if (cached != null && cached.getSeq() == board.getSeq()) {
+            hits++;
+            return cached;
+        }
+        misses++;
+        cached = board.encode();
+        return cached;
+    }
+
+    // Let go of the encoded board, such as when the board hibernates
+    public synchronized void clear() {
+        cached = null;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    // Share of snapshot requests served without encoding
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public synchronized String report() {
+        return String.format("Snapshots: %d served, %d encoded, hit rate %.1f%%",
+                hits + misses, misses, getHitRate() * 100);
+    }
+
+}
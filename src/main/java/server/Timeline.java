@@ -0,0 +1,145 @@
+/**
+ * Class for seeking through the board's history.
+ * A PNG keyframe of the board is kept every few operations, so the board at any point in time is the keyframe
+ * before it with at most that many operations drawn over it, however long the session has been.
+ * Keyframes are made the first time a seek needs them; the seeks themselves each draw on a board of their own,
+ * so the frames of a time-lapse asked for at the same time are rendered in parallel.
+ */
+
+package server;
+
+import canvas.BoardEngine;
+import canvas.CanvasEvent;
+import canvas.Utils;
+import metrics.ServerMetrics;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Timeline {
+
+    // Operations between two keyframes, configurable with -Dwhiteboard.timeline.keyframeEvery
+    public static final int keyframeEvery = Math.max(1, Integer.getInteger("whiteboard.timeline.keyframeEvery", 256));
+
+    private final BoardState board;
+    private final ServerMetrics metrics;
+    // Board after every keyframeEvery operations, the first one after keyframeEvery operations
+    private final List<byte[]> keyframes = new ArrayList<>();
+    // Layers cannot be rebuilt from a flat keyframe, so in layer mode every seek replays from the start
+    private final boolean keyed = !BoardEngine.layered;
+
+    public Timeline(BoardState board, ServerMetrics metrics) {
+        this.board = board;
+        this.metrics = metrics;
+    }
+
+    // Time of the first and the last operation in the history, empty if there is none
+    public long[] getSpan() {
+        List<History.Operation> ops = board.getHistory().getOperations();
+        if (ops.isEmpty()) {
+            return new long[0];
+        }
+        return new long[]{ops.get(0).getTime(), ops.get(ops.size() - 1).getTime()};
+    }
+
+    // The board as it was after the operations up to a time, in milliseconds since the epoch
+    public BufferedImage at(long time) throws IOException {
+        long start = System.nanoTime();
+        List<History.Operation> ops = board.getHistory().getOperations();
+        int n = count(ops, time);
+        int k;
+        byte[] keyframe;
+        synchronized (this) {
+            extend(ops, n);
+            k = keyed ? Math.min(n / keyframeEvery, keyframes.size()) : 0;
+            keyframe = k == 0 ? null : keyframes.get(k - 1);
+        }
+        BoardEngine engine = newEngine();
+        if (keyframe != null) {
+            engine.override(ImageIO.read(new ByteArrayInputStream(keyframe)));
+        }
+        for (int i = k * keyframeEvery; i < n; i++) {
+            draw(engine, ops.get(i));
+        }
+        metrics.seek(System.nanoTime() - start, n - k * keyframeEvery);
+        return engine.copy();
+    }
+
+    // Operations done by a time, the history is in the order of time
+    private static int count(List<History.Operation> ops, long time) {
+        int lo = 0, hi = ops.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ops.get(mid).getTime() <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Make the keyframes up to the n-th operation, drawing on from the last one made
+    private void extend(List<History.Operation> ops, int n) throws IOException {
+        if (!keyed) {
+            return;
+        }
+        int have = keyframes.size();
+        if ((have + 1) * keyframeEvery > n) {
+            return;
+        }
+        BoardEngine engine = newEngine();
+        if (have > 0) {
+            engine.override(ImageIO.read(new ByteArrayInputStream(keyframes.get(have - 1))));
+        }
+        for (int i = have * keyframeEvery; i < (n / keyframeEvery) * keyframeEvery; i++) {
+            draw(engine, ops.get(i));
+            if ((i + 1) % keyframeEvery == 0) {
+                ByteArrayOutputStream image = new ByteArrayOutputStream();
+                ImageIO.write(engine.copy(), "png", image);
+                keyframes.add(image.toByteArray());
+            }
+        }
+    }
+
+    private static BoardEngine newEngine() {
+        return new BoardEngine(BoardEngine.layered, BoardEngine.fastRaster);
+    }
+
+    // Draw an operation of the history as the drawing events it was made of
+    static void draw(BoardEngine engine, History.Operation op) throws IOException {
+        switch (op.getType()) {
+            case History.clean:
+                engine.clean();
+                return;
+            case History.cleanLayer:
+                engine.cleanLayer(op.getUsername());
+                return;
+            case History.open:
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(op.getImage()));
+                if (image != null) {
+                    engine.override(image);
+                }
+                return;
+        }
+        List<Point> points = op.getPoints();
+        if (points.isEmpty()) {
+            return;
+        }
+        String type = op.getType();
+        String user = op.getUsername();
+        engine.apply(new CanvasEvent(Utils.paintStart, type, op.getColor(), points.get(0), "", user));
+        for (int i = 1; i < points.size() - 1; i++) {
+            engine.apply(new CanvasEvent(Utils.painting, type, op.getColor(), points.get(i), "", user));
+        }
+        String text = op.getText() == null ? "" : op.getText();
+        engine.apply(new CanvasEvent(Utils.paintEnd, type, op.getColor(), points.get(points.size() - 1), text, user));
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Class for the large payloads the server hands out in chunks, such as encoded boards.
+ * A payload is kept while receivers may still ask for its chunks, so a transfer interrupted part way
+ * carries on from the chunk it stopped at. The same payload handed to several receivers is kept once.
+ * A payload for a single receiver, such as a frame of a time-lapse or a catch-up snapshot, is let go soon after its last chunk was sent.
+ */
+
+package server;
+
+import canvas.Chunk;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class Transfers {
+
+    // Time a payload is kept after its last chunk was asked for, configurable with -Dwhiteboard.transfer.keepMillis
+    public static final long keepMillis = Long.getLong("whiteboard.transfer.keepMillis", 60000L);
+    // Time a payload for a single receiver is kept after its last chunk was sent, in case that chunk is asked for again
+    private static final long servedKeepMillis = 5000;
+
+    private static class Payload {
+        private final long id;
+        private final byte[] data;
+        private final long crc;
+        // Asked for by one receiver only
+        private final boolean once;
+        private long usedTime = System.currentTimeMillis();
+        // Whether the last chunk has been sent
+        private boolean served = false;
+
+        Payload(long id, byte[] data, boolean once) {
+            this.id = id;
+            this.data = data;
+            this.crc = Chunk.crc(data);
+            this.once = once;
+        }
+
+        long keep() {
+            return once && served ? servedKeepMillis : keepMillis;
+        }
+    }
+
+    private final Map<Long, Payload> payloads = new HashMap<>();
+    // Payloads by their data, a cached snapshot is handed to every joiner as the same array
+    private final Map<byte[], Payload> byData = new IdentityHashMap<>();
+    private long nextId = 1;
+
+    // Keep a payload for its receivers and return its first chunk
+    public synchronized Chunk offer(byte[] data) {
+        expire();
+        Payload p = byData.get(data);
+        if (p == null) {
+            p = new Payload(nextId++, data, false);
+            payloads.put(p.id, p);
+            byData.put(data, p);
+        }
+        p.usedTime = System.currentTimeMillis();
+        return chunk(p, 0);
+    }
+
+    // Keep a payload for a single receiver, such as a frame of a time-lapse, and return its first chunk
+    public synchronized Chunk offerOnce(byte[] data) {
+        expire();
+        Payload p = new Payload(nextId++, data, true);
+        payloads.put(p.id, p);
+        return chunk(p, 0);
+    }
+
+    // Chunk of a payload starting at an offset, null if the payload is no longer kept
+    public synchronized Chunk chunk(long id, long offset) {
+        Payload p = payloads.get(id);
+        if (p == null || offset < 0 || offset > p.data.length) {
+            return null;
+        }
+        p.usedTime = System.currentTimeMillis();
+        return chunk(p, (int) offset);
+    }
+
+    private static Chunk chunk(Payload p, int offset) {
+        int length = Math.min(Chunk.size, p.data.length - offset);
+        if (offset + length == p.data.length) {
+            p.served = true;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(p.data, offset, data, 0, length);
+        return new Chunk(p.id, offset, p.data.length, p.crc, data);
+    }
+
+    // Drop the payloads no one has asked for in a while
+    public synchronized void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Payload> it = payloads.values().iterator();
+        while (it.hasNext()) {
+            Payload p = it.next();
+            if (now - p.usedTime > p.keep()) {
+                it.remove();
+                byData.remove(p.data);
+            }
+        }
+    }
+
+}